@@ -0,0 +1,136 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.bo.TicBO;
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.Result;
+
+/**
+ * Benchmarks of the main operations over messages generated by {@link MessageGenerator}.
+ * <br/>Run with: mvn -P benchmark test-compile exec:exec
+ * <br/>JMH options can be passed with -Djmh.args, i.e. -Djmh.args="TicBenchmark.build -p ches=10 -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TicBenchmark {
+	
+	@Param({"2"})
+	public int ches;
+	
+	@Param({"10", "100"})
+	public int timestamps;
+	
+	@Param({"3"})
+	public int width;
+	
+	@Param({"3"})
+	public int depth;
+	
+	private JsonObject message;
+	private String splitPath;
+	private JsonObject flatMessages;
+	
+	@Setup
+	public void setup() throws Exception {
+		MessageGenerator generator = new MessageGenerator(ches, timestamps, width, depth);
+		message = generator.generate();
+		splitPath = generator.getSplitPath();
+		
+		// Build works on the result of flatten
+		JsonArray messages = new JsonArray();
+		for(JsonObject m : TicBO.getMessages(message, null, null)) {
+			messages.add(m);
+		}
+		flatMessages = new JsonObject();
+		flatMessages.add(Result.getMessagesProperty(), messages);
+	}
+	
+	@Benchmark
+	public List<JsonObject> flatten() throws Exception {
+		return TicBO.getMessages(message, null, null);
+	}
+	
+	@Benchmark
+	public List<JsonObject> flattenSplit() throws Exception {
+		return TicBO.getMessages(message, null, splitPath);
+	}
+	
+	@Benchmark
+	public List<JsonObject> build() throws Exception {
+		return TicBO.buildMessages(flatMessages, null);
+	}
+	
+	@Benchmark
+	public Result validate() {
+		return TicBO.validate(message);
+	}
+	
+	@Benchmark
+	public List<JsonObject> splitByKey() {
+		return JsonUtils.splitByKey(message, "timestamp");
+	}
+	
+	@Benchmark
+	public Map<String, JsonObject> splitByInstant() {
+		return JsonUtils.splitByInstant(message, "timestamp");
+	}
+	
+	@Benchmark
+	public List<JsonObject> splitByPath() {
+		return JsonUtils.splitByPath(message, splitPath);
+	}
+}
@@ -35,10 +35,23 @@ package es.prodevelop.tic;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import es.prodevelop.tic.cli.TicCli;
+import es.prodevelop.tic.util.ConfigurationWatcher;
+import es.prodevelop.tic.util.JsonSchemaRegistry;
+
 @SpringBootApplication
 public class Application {
 
 	public static void main(String[] args) {
+		// Batch commands (flatten, build, validate) run over files without starting the web server
+		if(TicCli.isCommand(args)) {
+			System.exit(TicCli.run(args));
+		}
+		
+		// Compile the json schemas before accepting requests
+		JsonSchemaRegistry.preload();
+		// Reload the configuration when the files of CONFIG_DIR change
+		ConfigurationWatcher.start();
 		SpringApplication.run(Application.class, args);
 	}
 
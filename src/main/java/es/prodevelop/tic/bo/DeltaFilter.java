@@ -0,0 +1,140 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Keeps the last flat values emitted for each entity, so only the values changed since its previous message are emitted.
+ * <br/>A value and its timestamp are emitted together, a timestamp alone is not a change. The header (msg) and the id fields 
+ * (the id field and id) are always emitted but are not changes. The first message of an entity, and then one every keyframe interval, is emitted complete.
+ * <br/>Entities are kept in a LRU cache, an evicted entity starts again with a complete message.
+ */
+class DeltaFilter {
+	
+	private static final String HEADER_PREFIX = "msg.";
+	private static final String TIMESTAMP_SUFFIX = ".timestamp";
+	private static final String ID_SUFFIX = ".id";
+	private static final String KEYFRAME_KEY = "msg.keyframe";
+	
+	private final Map<String, EntityState> entities;
+	private final int keyframeInterval;
+	
+	/**
+	 * @param maxEntities Maximum number of entities kept
+	 * @param keyframeInterval Messages of an entity between complete messages, 0 to send only the first one complete
+	 */
+	DeltaFilter(int maxEntities, int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+		this.entities = new LinkedHashMap<String, EntityState>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, EntityState> eldest) {
+				return size() > maxEntities;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the values of a flat message that changed since the previous message of its entity, 
+	 * null if none of them changed. Messages of the same entity must be filtered in time order
+	 * @param entity
+	 * @param flat
+	 * @param idField
+	 * @return
+	 */
+	JsonObject filter(String entity, JsonObject flat, String idField) {
+		EntityState state;
+		synchronized(entities) {
+			state = entities.computeIfAbsent(entity, k -> new EntityState());
+		}
+		synchronized(state) {
+			boolean keyframe = (state.count == 0 || (keyframeInterval > 0 && state.count % keyframeInterval == 0));
+			state.count++;
+			if(keyframe) {
+				for(Entry<String, JsonElement> entry : flat.entrySet()) {
+					state.values.put(entry.getKey(), entry.getValue());
+				}
+				flat.addProperty(KEYFRAME_KEY, true);
+				return flat;
+			}
+			
+			// Objects (the path without the field) with a changed value. 
+			// The header and the ids are always emitted, they change in every message (msg.id, msg.sample) or identify the object
+			String idSuffix = "." + idField;
+			Set<String> changed = new HashSet<String>();
+			for(Entry<String, JsonElement> entry : flat.entrySet()) {
+				String key = entry.getKey();
+				if(!key.endsWith(TIMESTAMP_SUFFIX) && !isAlwaysEmitted(key, idField, idSuffix) && !entry.getValue().equals(state.values.get(key))) {
+					changed.add(getParent(key));
+				}
+			}
+			JsonObject delta = new JsonObject();
+			for(Entry<String, JsonElement> entry : flat.entrySet()) {
+				String key = entry.getKey();
+				if(!changed.isEmpty() && changed.contains(getParent(key))) {
+					delta.add(key, entry.getValue());
+				}
+				else if(isAlwaysEmitted(key, idField, idSuffix)) {
+					delta.add(key, entry.getValue());
+				}
+				state.values.put(key, entry.getValue());
+			}
+			return !changed.isEmpty() ? delta : null;
+		}
+	}
+	
+	private static boolean isAlwaysEmitted(String key, String idField, String idSuffix) {
+		return key.startsWith(HEADER_PREFIX) || key.endsWith(idSuffix) || key.endsWith(ID_SUFFIX) || key.equals(idField);
+	}
+	
+	private static String getParent(String key) {
+		int separator = key.lastIndexOf('.');
+		return separator > 0 ? key.substring(0, separator) : "";
+	}
+	
+	private static class EntityState {
+		long count;
+		// Last value of each flat key
+		final Map<String, JsonElement> values = new HashMap<String, JsonElement>();
+	}
+}
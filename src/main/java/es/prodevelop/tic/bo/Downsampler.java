@@ -0,0 +1,260 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import es.prodevelop.tic.util.TicConfiguration;
+import es.prodevelop.tic.util.TimeUtils;
+
+/**
+ * Combines the flat messages of each entity into fixed time buckets as they are generated, 
+ * so only one flat message is kept for each entity and bucket.
+ * <br/>Numeric values are combined with the aggregation configured for their field (last, min, max or mean), 
+ * any other value keeps the last one.
+ */
+class Downsampler {
+	
+	enum Aggregation {
+		LAST, MIN, MAX, MEAN;
+		
+		static Aggregation get(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			}
+			catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown aggregation: " + name);
+			}
+		}
+	}
+	
+	private static final String SAMPLE_KEY = "msg.sample";
+	
+	private final long bucketNanos;
+	private final Aggregation aggregation;
+	private final Map<String, Aggregation> fieldAggregations;
+	private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+	
+	/**
+	 * @param bucketMillis Size of the buckets
+	 * @param aggregation Aggregation of the fields without a configured one
+	 * @param fieldAggregations Aggregations configured by field
+	 */
+	Downsampler(long bucketMillis, Aggregation aggregation, Map<String, Aggregation> fieldAggregations) {
+		if(bucketMillis <= 0) {
+			throw new IllegalArgumentException("The bucket size must be positive");
+		}
+		this.bucketNanos = bucketMillis * 1000000L;
+		this.aggregation = aggregation;
+		this.fieldAggregations = fieldAggregations;
+	}
+	
+	static Aggregation getDefaultAggregation(TicConfiguration configuration) {
+		String name = configuration.get("DOWNSAMPLE_AGGREGATION");
+		return name != null && !name.trim().isEmpty() ? Aggregation.get(name) : Aggregation.LAST;
+	}
+	
+	/**
+	 * Aggregations by field (the last segment of the flat key), as field:aggregation separated by commas
+	 */
+	static Map<String, Aggregation> getFieldAggregations(TicConfiguration configuration) {
+		Map<String, Aggregation> aggregations = new HashMap<String, Aggregation>();
+		String value = configuration.get("DOWNSAMPLE_FIELD_AGGREGATIONS");
+		if(value != null) {
+			for(String item : value.split(",")) {
+				int separator = item.indexOf(':');
+				if(separator > 0) {
+					aggregations.put(item.substring(0, separator).trim(), Aggregation.get(item.substring(separator + 1)));
+				}
+			}
+		}
+		return aggregations;
+	}
+	
+	/**
+	 * Adds the flat message of an entity for a timestamp to its bucket
+	 * @param timestamp
+	 * @param entity Key of the entity, empty if the message is not split by entity
+	 * @param flat
+	 */
+	void add(String timestamp, String entity, JsonObject flat) {
+		long epoch = TimeUtils.getEpochNanosFromTimestamp(timestamp);
+		// Timestamps that can not be parsed are kept in their own bucket
+		String key = entity + '\u0000' + (epoch != TimeUtils.INVALID_EPOCH ? Long.toString(Math.floorDiv(epoch, bucketNanos)) : timestamp);
+		Bucket bucket = buckets.get(key);
+		if(bucket == null) {
+			bucket = new Bucket(entity, epoch != TimeUtils.INVALID_EPOCH ? Math.floorDiv(epoch, bucketNanos) : Long.MAX_VALUE, buckets.size());
+			buckets.put(key, bucket);
+		}
+		
+		for(Entry<String, JsonElement> entry : flat.entrySet()) {
+			Value value = bucket.values.get(entry.getKey());
+			if(value == null) {
+				bucket.values.put(entry.getKey(), new Value(entry.getValue(), epoch));
+			}
+			else {
+				value.add(entry.getValue(), epoch);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a flat message for each bucket, sorted by time and then by the order the entities were found
+	 * @return
+	 */
+	List<JsonObject> getMessages() {
+		List<JsonObject> messages = new ArrayList<JsonObject>(buckets.size());
+		for(Entry<String, JsonObject> entry : getMessagesByEntity()) {
+			messages.add(entry.getValue());
+		}
+		return messages;
+	}
+	
+	/**
+	 * Returns a flat message for each bucket with the key of its entity, sorted as getMessages()
+	 * @return
+	 */
+	List<Entry<String, JsonObject>> getMessagesByEntity() {
+		List<Bucket> sorted = new ArrayList<Bucket>(buckets.values());
+		sorted.sort((b1, b2) -> b1.index != b2.index ? Long.compare(b1.index, b2.index) : Integer.compare(b1.order, b2.order));
+		
+		List<Entry<String, JsonObject>> messages = new ArrayList<Entry<String, JsonObject>>(sorted.size());
+		int sample = 0;
+		for(Bucket bucket : sorted) {
+			sample++;
+			JsonObject flat = new JsonObject();
+			for(Entry<String, Value> entry : bucket.values.entrySet()) {
+				flat.add(entry.getKey(), entry.getValue().get(getAggregation(entry.getKey())));
+			}
+			// Samples are numbered again after combining them
+			if(flat.has(SAMPLE_KEY)) {
+				flat.addProperty(SAMPLE_KEY, sample);
+			}
+			messages.add(new SimpleImmutableEntry<String, JsonObject>(bucket.entity, flat));
+		}
+		return messages;
+	}
+	
+	private Aggregation getAggregation(String key) {
+		Aggregation fieldAggregation = fieldAggregations.isEmpty() ? null : fieldAggregations.get(key.substring(key.lastIndexOf('.') + 1));
+		return fieldAggregation != null ? fieldAggregation : aggregation;
+	}
+	
+	private static class Bucket {
+		final String entity;
+		final long index;
+		final int order;
+		// Values of each flat key, in the order the keys are found
+		final Map<String, Value> values = new LinkedHashMap<String, Value>();
+		
+		Bucket(String entity, long index, int order) {
+			this.entity = entity;
+			this.index = index;
+			this.order = order;
+		}
+	}
+	
+	/**
+	 * Values of a flat key in a bucket
+	 */
+	private static class Value {
+		JsonElement last;
+		long lastEpoch;
+		JsonElement min;
+		JsonElement max;
+		double sum;
+		int count;
+		// Only numbers are combined
+		boolean numeric;
+		
+		Value(JsonElement value, long epoch) {
+			last = min = max = value;
+			lastEpoch = epoch;
+			numeric = isNumber(value);
+			if(numeric) {
+				sum = value.getAsDouble();
+			}
+			count = 1;
+		}
+		
+		void add(JsonElement value, long epoch) {
+			// Samples are not added in time order
+			if(epoch >= lastEpoch) {
+				last = value;
+				lastEpoch = epoch;
+			}
+			count++;
+			numeric &= isNumber(value);
+			if(numeric) {
+				double d = value.getAsDouble();
+				sum += d;
+				if(d < min.getAsDouble()) {
+					min = value;
+				}
+				if(d > max.getAsDouble()) {
+					max = value;
+				}
+			}
+		}
+		
+		JsonElement get(Aggregation aggregation) {
+			if(!numeric) {
+				return last;
+			}
+			switch(aggregation) {
+				case MIN:
+					return min;
+				case MAX:
+					return max;
+				case MEAN:
+					return new JsonPrimitive(sum / count);
+				default:
+					return last;
+			}
+		}
+		
+		private static boolean isNumber(JsonElement value) {
+			return value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber();
+		}
+	}
+}
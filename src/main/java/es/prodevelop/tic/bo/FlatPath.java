@@ -0,0 +1,105 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+/**
+ * A flat key (i.e. che.@c1.hoist.load.actual.#unit#kg.value) parsed once into its segments and reused between messages.
+ */
+class FlatPath {
+	
+	enum Type {
+		// Element of an array by id (@c1) or any element (@)
+		ID,
+		// Value of a key field with a enum value (actual)
+		CLOSE_KEY_FIELD,
+		// Key field with a free value (#unit#kg)
+		OPEN_KEY_FIELD,
+		// Name of a field
+		FIELD
+	}
+	
+	static class Segment {
+		final Type type;
+		// Segment as found in the key
+		final String text;
+		// Id of the element, null to select any element
+		final String id;
+		// Key field and its value, null value if the key field has no value. Null key field if the segment is malformed
+		final String keyField;
+		final String keyValue;
+		
+		private Segment(Type type, String text, String id, String keyField, String keyValue) {
+			this.type = type;
+			this.text = text;
+			this.id = id;
+			this.keyField = keyField;
+			this.keyValue = keyValue;
+		}
+	}
+	
+	final Segment[] segments;
+	
+	private FlatPath(TicEngine engine, String key) {
+		String[] path = key.split("[.]");
+		segments = new Segment[path.length];
+		for(int i = 0; i < path.length; i++) {
+			segments[i] = parse(engine, path[i]);
+		}
+	}
+	
+	/**
+	 * Returns the key parsed with the key fields of an engine, from its cache if it was already parsed
+	 * @param engine
+	 * @param key
+	 * @return
+	 */
+	static FlatPath compile(TicEngine engine, String key) {
+		return engine.flatPaths.get(key, k -> new FlatPath(engine, k));
+	}
+	
+	private static Segment parse(TicEngine engine, String text) {
+		if(text.startsWith(engine.markerId)) {
+			return new Segment(Type.ID, text, text.length() == 1 ? null : text.substring(1), null, null);
+		}
+		else if(engine.pathToFieldMap.get(text) != null) {
+			return new Segment(Type.CLOSE_KEY_FIELD, text, null, engine.pathToFieldMap.get(text), text);
+		}
+		else if(text.startsWith(engine.markerKeyField)) {
+			String[] keyAndValue = text.split(engine.markerKeyField);
+			return new Segment(Type.OPEN_KEY_FIELD, text, null, 
+					keyAndValue.length > 1 ? keyAndValue[1] : null, 
+					keyAndValue.length > 2 ? keyAndValue[2] : null);
+		}
+		return new Segment(Type.FIELD, text, null, null, null);
+	}
+}
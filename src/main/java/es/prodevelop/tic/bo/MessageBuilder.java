@@ -0,0 +1,409 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.util.JsonUtils;
+
+/**
+ * Builds a TIC message from the keys of a flat json.
+ * <br/>Each array of the tree keeps hash indexes of its elements by id and by key field values, 
+ * so every key is placed without scanning the arrays it goes through.
+ */
+class MessageBuilder {
+	
+	private final TicEngine engine;
+	private final String idField;
+	private final JsonObject tree = new JsonObject();
+	private final Map<JsonArray, ArrayIndex> indexes = new IdentityHashMap<JsonArray, ArrayIndex>();
+	
+	MessageBuilder(TicEngine engine, String idField) {
+		this.engine = engine;
+		this.idField = idField;
+	}
+	
+	JsonObject getTree() {
+		return tree;
+	}
+	
+	/**
+	 * Adds the value of a flat key to the tree
+	 * @param key
+	 * @param value
+	 */
+	void add(String key, JsonElement value) {
+		FlatPath.Segment[] path = FlatPath.compile(engine, key).segments;
+		JsonElement parent = tree;
+		JsonElement grandparent = tree;
+		// When the parent is an element of an array, the index of the array and the position of the element
+		ArrayIndex owner = null;
+		int ownerPosition = -1;
+		
+		HashMap<String, String> keyFieldMap = new HashMap<String, String>();
+		
+		// For each level of the path
+		for(int i = 0; i < path.length; i++) {
+			// If it is an id path
+			if(path[i].type == FlatPath.Type.ID) {
+				// If the parent is an object, change it to Array
+				if(parent.isJsonObject()) {
+					parent = new JsonArray();
+					grandparent.getAsJsonObject().add(path[i-1].text, parent);
+				}
+				// Look for object or create if it does not exist
+				ArrayIndex index = getIndex(parent.getAsJsonArray());
+				int position = index.findById(path[i].id);
+				if(position < 0) {
+					position = index.append(new JsonObject());
+					grandparent = parent;
+				}
+				else {
+					// When several elements match, the previous one is kept as grandparent
+					int previous = index.findPreviousById(path[i].id, position);
+					grandparent = previous < 0 ? parent : index.array.get(previous);
+				}
+				parent = index.array.get(position);
+				owner = index;
+				ownerPosition = position;
+			}
+			// If it as a value that was added into the path (pom/pomt)
+			else if(path[i].type == FlatPath.Type.CLOSE_KEY_FIELD) {
+				// If the parent is an object, change it to Array
+				if(parent.isJsonObject()) {
+					parent = new JsonArray();
+					grandparent.getAsJsonObject().add(path[i-1].text, parent);
+				}
+				keyFieldMap.put(path[i].keyField, path[i].keyValue);
+			}
+			// If it is a value that was added into the path but with not limited values
+			else if(path[i].type == FlatPath.Type.OPEN_KEY_FIELD) {
+				// If the parent is an object, change it to Array
+				if(parent.isJsonObject()) {
+					parent = new JsonArray();
+					grandparent.getAsJsonObject().add(path[i-1].text, parent);
+				}
+				if(path[i].keyField == null) {
+					throw new IllegalArgumentException("Key field without name: " + path[i].text);
+				}
+				keyFieldMap.put(path[i].keyField, path[i].keyValue);
+			}
+			// Add path fields to the object when having a value
+			else if(keyFieldMap.size() > 0) {
+				ArrayIndex index = getIndex(parent.getAsJsonArray());
+				KeyFieldIndex keyFieldIndex = index.getKeyFieldIndex(keyFieldMap.keySet());
+				// Copy, as setting a key field moves the element in the index
+				TreeSet<Integer> matches = new TreeSet<Integer>(keyFieldIndex.find(keyFieldMap));
+				int failing = keyFieldIndex.findNotComparable(keyFieldMap);
+				if(failing >= 0) {
+					for(int match : matches.headSet(failing)) {
+						index.put(match, path[i].text, value);
+					}
+					throw new IllegalStateException("Key field is not a string in " + index.array.get(failing));
+				}
+				int position;
+				if(!matches.isEmpty()) {
+					// Every element with the same key field values gets the value, the last one is the new parent
+					for(int match : matches) {
+						index.put(match, path[i].text, value);
+					}
+					position = matches.last();
+					// When several elements match, the previous one is kept as grandparent
+					Integer previous = matches.lower(position);
+					grandparent = previous == null ? parent : index.array.get(previous);
+				}
+				else {
+					JsonObject o = new JsonObject();
+					for(String k : keyFieldMap.keySet()) {
+						o.addProperty(k, keyFieldMap.get(k));
+					}
+					o.add(path[i].text, value);
+					position = index.append(o);
+					grandparent = parent;
+				}
+				parent = index.array.get(position);
+				owner = index;
+				ownerPosition = position;
+			}
+			// Just parent and child
+			else {
+				// If the object does not exist yet
+				if(parent.getAsJsonObject().get(path[i].text) == null) {
+					// Create as an object if is part of the path or set the value if it is the last slice
+					JsonElement child = i < path.length - 1 ? new JsonObject() : value;
+					if(owner != null) {
+						owner.put(ownerPosition, path[i].text, child);
+					}
+					else {
+						parent.getAsJsonObject().add(path[i].text, child);
+					}
+				}
+				// Set new grandparent and parent
+				grandparent = parent; 
+				parent = parent.getAsJsonObject().get(path[i].text);
+				owner = null;
+			}
+		}
+	}
+	
+	private ArrayIndex getIndex(JsonArray array) {
+		ArrayIndex index = indexes.get(array);
+		if(index == null) {
+			index = new ArrayIndex(array);
+			indexes.put(array, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Positions of the elements of an array by id and by the values of each set of key fields looked up.
+	 * Elements are only added to the array or modified through the index, so it is always up to date
+	 */
+	private class ArrayIndex {
+		final JsonArray array;
+		final Map<String, TreeSet<Integer>> byId = new HashMap<String, TreeSet<Integer>>();
+		final TreeSet<Integer> withoutId = new TreeSet<Integer>();
+		// Elements with an id that can not be read as a string
+		final TreeSet<Integer> notStringId = new TreeSet<Integer>();
+		final Map<List<String>, KeyFieldIndex> byKeyFields = new HashMap<List<String>, KeyFieldIndex>();
+		
+		ArrayIndex(JsonArray array) {
+			this.array = array;
+			for(int i = 0; i < array.size(); i++) {
+				addId(i, array.get(i).getAsJsonObject());
+			}
+		}
+		
+		/**
+		 * Returns the last element with the id or without id (or the last element if there is no id), -1 if none 
+		 */
+		int findById(String id) {
+			if(id == null) {
+				return array.size() - 1;
+			}
+			if(!notStringId.isEmpty()) {
+				throw new IllegalStateException("Id is not a string in " + array.get(notStringId.first()));
+			}
+			TreeSet<Integer> positions = byId.get(id);
+			int withId = positions != null ? positions.last() : -1;
+			int noId = withoutId.isEmpty() ? -1 : withoutId.last();
+			return Math.max(withId, noId);
+		}
+		
+		/**
+		 * Returns the previous element before the position that would also be found by the id, -1 if none
+		 */
+		int findPreviousById(String id, int position) {
+			if(id == null) {
+				return position - 1;
+			}
+			TreeSet<Integer> positions = byId.get(id);
+			Integer withId = positions != null ? positions.lower(position) : null;
+			Integer noId = withoutId.lower(position);
+			return Math.max(withId != null ? withId : -1, noId != null ? noId : -1);
+		}
+		
+		KeyFieldIndex getKeyFieldIndex(Set<String> keyFields) {
+			List<String> fields = new ArrayList<String>(keyFields);
+			Collections.sort(fields);
+			
+			KeyFieldIndex index = byKeyFields.get(fields);
+			if(index == null) {
+				index = new KeyFieldIndex(this, fields);
+				for(int i = 0; i < array.size(); i++) {
+					index.add(i, array.get(i).getAsJsonObject());
+				}
+				byKeyFields.put(fields, index);
+			}
+			return index;
+		}
+		
+		int append(JsonObject element) {
+			int position = array.size();
+			array.add(element);
+			addId(position, element);
+			for(KeyFieldIndex index : byKeyFields.values()) {
+				index.add(position, element);
+			}
+			return position;
+		}
+		
+		/**
+		 * Sets a property of an element, moving the element in the indexes that use the property
+		 */
+		void put(int position, String property, JsonElement value) {
+			JsonObject element = array.get(position).getAsJsonObject();
+			
+			if(property.equals(idField)) {
+				removeId(position, element);
+			}
+			for(KeyFieldIndex index : byKeyFields.values()) {
+				if(index.fields.contains(property)) {
+					index.remove(position, element);
+				}
+			}
+			
+			element.add(property, value);
+			
+			if(property.equals(idField)) {
+				addId(position, element);
+			}
+			for(KeyFieldIndex index : byKeyFields.values()) {
+				if(index.fields.contains(property)) {
+					index.add(position, element);
+				}
+			}
+		}
+		
+		private void addId(int position, JsonObject element) {
+			if(!JsonUtils.has(element, idField)) {
+				withoutId.add(position);
+			}
+			else if(!isString(element.get(idField))) {
+				notStringId.add(position);
+			}
+			else {
+				byId.computeIfAbsent(element.get(idField).getAsString(), k -> new TreeSet<Integer>()).add(position);
+			}
+		}
+		
+		private void removeId(int position, JsonObject element) {
+			if(!JsonUtils.has(element, idField)) {
+				withoutId.remove(position);
+			}
+			else if(!isString(element.get(idField))) {
+				notStringId.remove(position);
+			}
+			else {
+				byId.get(element.get(idField).getAsString()).remove(position);
+			}
+		}
+	}
+	
+	/**
+	 * Positions of the elements of an array by the values of a set of key fields
+	 */
+	private static class KeyFieldIndex {
+		final ArrayIndex arrayIndex;
+		final List<String> fields;
+		final Map<List<String>, TreeSet<Integer>> byValues = new HashMap<List<String>, TreeSet<Integer>>();
+		// Elements with a key field that can not be read as a string
+		final TreeSet<Integer> notString = new TreeSet<Integer>();
+		
+		KeyFieldIndex(ArrayIndex arrayIndex, List<String> fields) {
+			this.arrayIndex = arrayIndex;
+			this.fields = fields;
+		}
+		
+		/**
+		 * Returns the elements that have the same values in the key fields, a null value means that the element has not the field 
+		 */
+		TreeSet<Integer> find(Map<String, String> keyFields) {
+			List<String> values = new ArrayList<String>(fields.size());
+			for(String field : fields) {
+				values.add(keyFields.get(field));
+			}
+			TreeSet<Integer> positions = byValues.get(values);
+			return positions != null ? positions : new TreeSet<Integer>();
+		}
+		
+		/**
+		 * Returns the first element whose key fields can not be compared with the values, -1 if none.
+		 * Fields are compared in the order of the map until one does not match
+		 */
+		int findNotComparable(Map<String, String> keyFields) {
+			for(int position : notString) {
+				JsonObject element = arrayIndex.array.get(position).getAsJsonObject();
+				for(Map.Entry<String, String> keyField : keyFields.entrySet()) {
+					if(JsonUtils.has(element, keyField.getKey()) && !isString(element.get(keyField.getKey()))) {
+						return position;
+					}
+					String value = JsonUtils.getAsString(element, keyField.getKey());
+					if(keyField.getValue() == null ? value != null : !keyField.getValue().equals(value)) {
+						break;
+					}
+				}
+			}
+			return -1;
+		}
+		
+		void add(int position, JsonObject element) {
+			List<String> values = getValues(element);
+			if(values == null) {
+				notString.add(position);
+			}
+			else {
+				byValues.computeIfAbsent(values, k -> new TreeSet<Integer>()).add(position);
+			}
+		}
+		
+		void remove(int position, JsonObject element) {
+			List<String> values = getValues(element);
+			if(values == null) {
+				notString.remove(position);
+			}
+			else {
+				byValues.get(values).remove(position);
+			}
+		}
+		
+		private List<String> getValues(JsonObject element) {
+			List<String> values = new ArrayList<String>(fields.size());
+			for(String field : fields) {
+				if(JsonUtils.has(element, field) && !isString(element.get(field))) {
+					return null;
+				}
+				values.add(JsonUtils.getAsString(element, field));
+			}
+			return values;
+		}
+	}
+	
+	/**
+	 * True if the value can be read as a string, as a primitive or an array with a single primitive
+	 */
+	private static boolean isString(JsonElement value) {
+		return value.isJsonPrimitive() || value.isJsonArray() && value.getAsJsonArray().size() == 1 && value.getAsJsonArray().get(0).isJsonPrimitive();
+	}
+}
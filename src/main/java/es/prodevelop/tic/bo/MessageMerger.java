@@ -0,0 +1,276 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.TimeUtils;
+
+/**
+ * Folds the flat messages of each source message (msg.id) and entity into a single TIC message.
+ * <br/>Each flat message is built on its own and then merged into the tree of its group: objects are merged field by field, 
+ * array elements are matched by id, timestamp and key field values through a hash index of each array, and the subtrees 
+ * not found in the group tree are attached as they are, without copying them. Merging is linear in the size of the flat messages, 
+ * then the arrays of samples are sorted by time.
+ * <br/>Flat messages of a source message are expected together, as returned by flatten, so the groups are written when another source message starts.
+ * Only the groups of the current source message are kept, but the flat messages are read from an input that is already parsed.
+ */
+class MessageMerger {
+	
+	private static final String HEADER = "msg";
+	private static final String HEADER_ID_KEY = "msg.id";
+	private static final String SAMPLE = "sample";
+	
+	private final TicEngine engine;
+	private final String idField;
+	private final Consumer<JsonObject> consumer;
+	private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+	private String currentId;
+	
+	MessageMerger(TicEngine engine, String idField, Consumer<JsonObject> consumer) {
+		this.engine = engine;
+		this.idField = idField;
+		this.consumer = consumer;
+	}
+	
+	/**
+	 * Adds a flat message to its group
+	 * @param flat
+	 * @throws Exception
+	 */
+	void add(JsonObject flat) throws Exception {
+		String id = JsonUtils.getAsString(flat, HEADER_ID_KEY);
+		if(!groups.isEmpty() && !Objects.equals(id, currentId)) {
+			flush();
+		}
+		currentId = id;
+		Group group = groups.computeIfAbsent(getEntity(flat), k -> new Group());
+		group.add(engine.buildMessage(flat, idField));
+	}
+	
+	/**
+	 * Sends the merged messages of the open groups
+	 */
+	void flush() {
+		for(Group group : groups.values()) {
+			consumer.accept(group.getTree());
+		}
+		groups.clear();
+	}
+	
+	/**
+	 * Returns the first array element with an id of a flat message (che.@che0), from the key if it has the id 
+	 * or from the value of the id field if the message was split by the array (che.@.arrayid). Empty if there is none
+	 */
+	private String getEntity(JsonObject flat) {
+		String marker = "." + engine.markerId;
+		for(Entry<String, JsonElement> entry : flat.entrySet()) {
+			String key = entry.getKey();
+			int start = key.indexOf(marker);
+			if(start < 0) {
+				continue;
+			}
+			start += marker.length();
+			int end = key.indexOf('.', start);
+			if(end > start) {
+				return key.substring(0, end);
+			}
+			if(end == start && key.length() == end + 1 + idField.length() && key.endsWith(idField) && entry.getValue().isJsonPrimitive()) {
+				return key.substring(0, start) + entry.getValue().getAsString();
+			}
+		}
+		return "";
+	}
+	
+	/**
+	 * Merged tree of a source message and entity
+	 */
+	private class Group {
+		private JsonObject tree;
+		private JsonElement sample;
+		private boolean multipleSamples;
+		// Elements of each array of the tree by their identity
+		private final Map<JsonArray, Map<String, JsonObject>> indexes = new IdentityHashMap<JsonArray, Map<String, JsonObject>>();
+		
+		void add(JsonObject message) {
+			JsonElement messageSample = getSample(message);
+			if(tree == null) {
+				tree = message;
+				sample = messageSample;
+				return;
+			}
+			if(!Objects.equals(sample, messageSample)) {
+				multipleSamples = true;
+			}
+			merge(tree, message);
+		}
+		
+		JsonObject getTree() {
+			// Samples are added in the order of the flat messages, sort the merged arrays by time
+			for(JsonArray array : indexes.keySet()) {
+				sortByTimestamp(array);
+			}
+			// The merged message has several samples, so it has no sample number
+			if(multipleSamples && tree.has(HEADER) && tree.get(HEADER).isJsonObject()) {
+				tree.getAsJsonObject(HEADER).remove(SAMPLE);
+			}
+			return tree;
+		}
+		
+		private JsonElement getSample(JsonObject message) {
+			return message.has(HEADER) && message.get(HEADER).isJsonObject() ? message.getAsJsonObject(HEADER).get(SAMPLE) : null;
+		}
+		
+		private void merge(JsonObject target, JsonObject source) {
+			for(Entry<String, JsonElement> entry : source.entrySet()) {
+				JsonElement current = target.get(entry.getKey());
+				JsonElement value = entry.getValue();
+				if(current != null && current.isJsonObject() && value.isJsonObject()) {
+					merge(current.getAsJsonObject(), value.getAsJsonObject());
+				}
+				else if(current != null && current.isJsonArray() && isArrayOfObjects(value)) {
+					mergeArray(current.getAsJsonArray(), value.getAsJsonArray());
+				}
+				// New subtrees are reused, values are replaced by the last one
+				else {
+					target.add(entry.getKey(), value);
+				}
+			}
+		}
+		
+		private void mergeArray(JsonArray target, JsonArray source) {
+			Map<String, JsonObject> index = indexes.get(target);
+			if(index == null) {
+				index = new HashMap<String, JsonObject>();
+				for(JsonElement e : target) {
+					if(e.isJsonObject()) {
+						index.putIfAbsent(getIdentity(e.getAsJsonObject()), e.getAsJsonObject());
+					}
+				}
+				indexes.put(target, index);
+			}
+			for(JsonElement e : source) {
+				JsonObject element = e.getAsJsonObject();
+				String identity = getIdentity(element);
+				JsonObject match = index.get(identity);
+				if(match != null) {
+					merge(match, element);
+				}
+				else {
+					target.add(element);
+					index.put(identity, element);
+				}
+			}
+		}
+		
+		/**
+		 * Sorts the elements of an array by their timestamp, if all of them have one that can be parsed
+		 */
+		private void sortByTimestamp(JsonArray array) {
+			int size = array.size();
+			long[] epochs = new long[size];
+			Integer[] order = new Integer[size];
+			boolean sorted = true;
+			for(int i = 0; i < size; i++) {
+				JsonElement e = array.get(i);
+				String timestamp = (e.isJsonObject() ? JsonUtils.getAsString(e.getAsJsonObject(), "timestamp") : null);
+				epochs[i] = (timestamp != null ? TimeUtils.getEpochNanosFromTimestamp(timestamp) : TimeUtils.INVALID_EPOCH);
+				if(epochs[i] == TimeUtils.INVALID_EPOCH) {
+					return;
+				}
+				sorted &= (i == 0 || epochs[i - 1] <= epochs[i]);
+				order[i] = i;
+			}
+			if(sorted) {
+				return;
+			}
+			Arrays.sort(order, (i1, i2) -> Long.compare(epochs[i1], epochs[i2]));
+			JsonElement[] elements = new JsonElement[size];
+			for(int i = 0; i < size; i++) {
+				elements[i] = array.get(order[i]);
+			}
+			for(int i = 0; i < size; i++) {
+				array.set(i, elements[i]);
+			}
+		}
+		
+		private boolean isArrayOfObjects(JsonElement value) {
+			if(!value.isJsonArray()) {
+				return false;
+			}
+			for(JsonElement e : value.getAsJsonArray()) {
+				if(!e.isJsonObject()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Id, timestamp and key field values of an array element
+		 */
+		private String getIdentity(JsonObject element) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(getValue(element, idField)).append('\u0000').append(getValue(element, "timestamp"));
+			for(String field : engine.fieldsToPath) {
+				if(JsonUtils.has(element, field)) {
+					sb.append('\u0000').append(field).append('=').append(getValue(element, field));
+				}
+			}
+			return sb.toString();
+		}
+		
+		/**
+		 * Returns the value of a field as a string, in json format if it is an object or an array, null if it is not set
+		 */
+		private String getValue(JsonObject element, String field) {
+			if(!JsonUtils.has(element, field)) {
+				return null;
+			}
+			JsonElement value = element.get(field);
+			return value.isJsonPrimitive() ? value.getAsString() : value.toString();
+		}
+	}
+}
@@ -0,0 +1,381 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import es.prodevelop.tic.util.Configuration;
+import es.prodevelop.tic.util.Metrics;
+import es.prodevelop.tic.util.TimeUtils;
+
+/**
+ * Last known value of each flat key of each entity (CHE, TOS object...), updated with every flattened message.
+ * <br/>Each entity keeps its values in arrays sorted by key: numbers are stored as primitive longs (the bits of the double 
+ * for decimals), other values as json elements, and the time of each value in nanoseconds. A value is only replaced by a 
+ * newer one, so messages received out of order do not go back in time.
+ * <br/>Entities are kept by sender (msg.sender) and id, so entities with the same id sent by different senders do not mix. 
+ * The header keys (msg.*) are not kept.
+ * <br/>The store keeps a maximum number of entities and of keys per entity. When there are too many entities, those not updated 
+ * for a while and the least recently updated are evicted, a tenth of them at once so the eviction is not done for every new entity. 
+ * New keys of an entity that is full are dropped.
+ * <br/>There is one store for the whole process, shared by all the {@link TicEngine}s and kept when the configuration is reloaded. 
+ * Its settings are read once, when it is first used.
+ */
+public class StateStore {
+	
+	private static final int DEFAULT_MAX_ENTITIES = 10000;
+	private static final int DEFAULT_MAX_KEYS = 10000;
+	private static final long DEFAULT_IDLE_SECONDS = 3600;
+	private static final String HEADER_PREFIX = "msg.";
+	private static final boolean enabled = Configuration.getAsBoolean("STATE_STORE");
+	private static final int maxEntities = getMaxEntities();
+	private static final int maxKeys = getMaxKeys();
+	private static final long idleMillis = getIdleSeconds() * 1000;
+	private static final ConcurrentHashMap<String, EntityState> entities = new ConcurrentHashMap<String, EntityState>();
+	// Only one thread evicts at a time
+	private static final Object evictionLock = new Object();
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Updates the values of an entity with a flat message
+	 * @param sender Sender of the message (msg.sender), null if it has none
+	 * @param entity Id of the entity, null to take the entity of each key from its first id segment (che.@che0...)
+	 * @param timestamp Time of the sample, the current time if it can not be parsed
+	 * @param flat
+	 * @param markerId
+	 */
+	static void update(String sender, String entity, String timestamp, JsonObject flat, String markerId) {
+		long epoch = TimeUtils.getEpochNanosFromTimestamp(timestamp);
+		long now = System.currentTimeMillis();
+		if(epoch == TimeUtils.INVALID_EPOCH) {
+			epoch = now * 1000000L;
+		}
+		
+		EntityState state = (entity != null ? getState(sender, entity, now) : null);
+		String lastEntity = null;
+		for(Entry<String, JsonElement> entry : flat.entrySet()) {
+			if(entry.getKey().startsWith(HEADER_PREFIX)) {
+				continue;
+			}
+			if(entity == null) {
+				String keyEntity = getEntity(entry.getKey(), markerId);
+				// Keys out of any entity
+				if(keyEntity == null) {
+					continue;
+				}
+				// Keys of the same entity are usually together
+				if(!keyEntity.equals(lastEntity)) {
+					state = getState(sender, keyEntity, now);
+					lastEntity = keyEntity;
+				}
+			}
+			state.put(entry.getKey(), entry.getValue(), epoch);
+		}
+	}
+	
+	/**
+	 * Returns the values of an entity starting with a prefix, with the time of each one
+	 * @param sender Sender of the entity, null for the entities of messages without sender
+	 * @param entity
+	 * @param prefix Prefix of the keys, null for all of them
+	 * @return The entity, null if it is not in the store
+	 */
+	public static JsonObject get(String sender, String entity, String prefix) {
+		EntityState state = entities.get(getId(sender, entity));
+		if(state == null || isIdle(state, System.currentTimeMillis())) {
+			return null;
+		}
+		JsonObject result = new JsonObject();
+		result.addProperty("sender", sender);
+		result.addProperty("entity", entity);
+		result.add("values", state.get(prefix));
+		return result;
+	}
+	
+	/**
+	 * Returns the senders and ids of the entities in the store with their number of keys and last update, 
+	 * the most recently updated first
+	 * @return
+	 */
+	public static JsonObject getEntities() {
+		long now = System.currentTimeMillis();
+		entities.values().removeIf(state -> isIdle(state, now));
+		EntityState[] states = entities.values().toArray(new EntityState[0]);
+		// The entities may be updated while they are sorted, so they are sorted by a copy of their last update
+		long[] updated = new long[states.length];
+		Integer[] order = new Integer[states.length];
+		for(int i = 0; i < states.length; i++) {
+			updated[i] = states[i].updated;
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(updated[b], updated[a]));
+		JsonArray list = new JsonArray();
+		for(int i : order) {
+			JsonObject o = new JsonObject();
+			o.addProperty("sender", states[i].sender);
+			o.addProperty("entity", states[i].entity);
+			o.addProperty("keys", states[i].size());
+			o.addProperty("updated", Instant.ofEpochMilli(updated[i]).toString());
+			list.add(o);
+		}
+		JsonObject result = new JsonObject();
+		result.add("entities", list);
+		return result;
+	}
+	
+	private static EntityState getState(String sender, String entity, long now) {
+		String id = getId(sender, entity);
+		EntityState state = entities.get(id);
+		if(state == null) {
+			state = entities.computeIfAbsent(id, k -> new EntityState(k, sender, entity, now));
+			if(entities.size() > maxEntities) {
+				evict(now);
+			}
+		}
+		state.updated = now;
+		return state;
+	}
+	
+	/**
+	 * Evicts the idle entities and, if there are still too many, the least recently updated down to nine tenths of the maximum
+	 */
+	private static void evict(long now) {
+		synchronized(evictionLock) {
+			if(entities.size() <= maxEntities) {
+				return;
+			}
+			entities.values().removeIf(state -> isIdle(state, now));
+			EntityState[] states = entities.values().toArray(new EntityState[0]);
+			int excess = states.length - (maxEntities - maxEntities / 10);
+			if(excess <= 0) {
+				return;
+			}
+			long[] updated = new long[states.length];
+			for(int i = 0; i < states.length; i++) {
+				updated[i] = states[i].updated;
+			}
+			long[] sorted = updated.clone();
+			Arrays.sort(sorted);
+			long newestEvicted = sorted[excess - 1];
+			for(int i = 0; i < states.length; i++) {
+				if(updated[i] <= newestEvicted) {
+					entities.remove(states[i].id, states[i]);
+				}
+			}
+		}
+	}
+	
+	private static boolean isIdle(EntityState state, long now) {
+		return now - state.updated > idleMillis;
+	}
+	
+	/**
+	 * Returns the key of an entity in the store, the sender and the id separated by a character that is not in json keys
+	 */
+	private static String getId(String sender, String entity) {
+		return sender != null ? sender + '\u0000' + entity : entity;
+	}
+	
+	/**
+	 * Returns the id of the first array element of a key (che0 in che.@che0.hoist...), null if it has none
+	 */
+	static String getEntity(String key, String markerId) {
+		int start = key.indexOf("." + markerId);
+		if(start < 0) {
+			return null;
+		}
+		start += markerId.length() + 1;
+		int end = key.indexOf('.', start);
+		String id = (end < 0 ? key.substring(start) : key.substring(start, end));
+		return id.isEmpty() ? null : id;
+	}
+	
+	private static int getMaxEntities() {
+		Integer value = Configuration.getAsInteger("STATE_MAX_ENTITIES");
+		return value != null && value > 0 ? value : DEFAULT_MAX_ENTITIES;
+	}
+	
+	private static int getMaxKeys() {
+		Integer value = Configuration.getAsInteger("STATE_MAX_KEYS");
+		return value != null && value > 0 ? value : DEFAULT_MAX_KEYS;
+	}
+	
+	private static long getIdleSeconds() {
+		Long value = Configuration.getAsLong("STATE_IDLE_SECONDS");
+		return value != null && value > 0 ? value : DEFAULT_IDLE_SECONDS;
+	}
+	
+	/**
+	 * Values of an entity, sorted by key
+	 */
+	private static class EntityState {
+		
+		private static final byte LONG = 1;
+		private static final byte DOUBLE = 2;
+		private static final byte OTHER = 3;
+		// Integers from this magnitude may not be exact as doubles
+		private static final double MAX_EXACT_INTEGER = 1L << 53;
+		
+		final String id;
+		final String sender;
+		final String entity;
+		volatile long updated;
+		private String[] keys = new String[8];
+		private byte[] kinds = new byte[8];
+		private long[] numbers = new long[8];
+		private long[] epochs = new long[8];
+		// Only allocated if the entity has values that are not numbers
+		private JsonElement[] others;
+		private int size;
+		
+		EntityState(String id, String sender, String entity, long updated) {
+			this.id = id;
+			this.sender = sender;
+			this.entity = entity;
+			this.updated = updated;
+		}
+		
+		synchronized int size() {
+			return size;
+		}
+		
+		synchronized void put(String key, JsonElement value, long epoch) {
+			int i = Arrays.binarySearch(keys, 0, size, key);
+			if(i < 0) {
+				if(size >= maxKeys) {
+					Metrics.count("state.droppedKeys");
+					return;
+				}
+				i = add(-i - 1, key);
+			}
+			else if(epochs[i] > epoch) {
+				return;
+			}
+			epochs[i] = epoch;
+			if(value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+				Number number = value.getAsNumber();
+				double d = number.doubleValue();
+				if(d == Math.rint(d) && Math.abs(d) >= MAX_EXACT_INTEGER) {
+					// Kept as it was received, as a double could change its digits
+					setOther(i, value);
+					return;
+				}
+				if(d == Math.rint(d) && !number.toString().contains(".")) {
+					kinds[i] = LONG;
+					numbers[i] = (long) d;
+				}
+				else {
+					kinds[i] = DOUBLE;
+					numbers[i] = Double.doubleToRawLongBits(d);
+				}
+				if(others != null) {
+					others[i] = null;
+				}
+			}
+			else {
+				setOther(i, value);
+			}
+		}
+		
+		private void setOther(int i, JsonElement value) {
+			if(others == null) {
+				others = new JsonElement[keys.length];
+			}
+			kinds[i] = OTHER;
+			others[i] = value;
+		}
+		
+		/**
+		 * Inserts a key at its position in the sorted keys
+		 */
+		private int add(int i, String key) {
+			if(size == keys.length) {
+				int length = Math.min(size * 2, maxKeys);
+				keys = Arrays.copyOf(keys, length);
+				kinds = Arrays.copyOf(kinds, length);
+				numbers = Arrays.copyOf(numbers, length);
+				epochs = Arrays.copyOf(epochs, length);
+				if(others != null) {
+					others = Arrays.copyOf(others, length);
+				}
+			}
+			int moved = size - i;
+			System.arraycopy(keys, i, keys, i + 1, moved);
+			System.arraycopy(kinds, i, kinds, i + 1, moved);
+			System.arraycopy(numbers, i, numbers, i + 1, moved);
+			System.arraycopy(epochs, i, epochs, i + 1, moved);
+			if(others != null) {
+				System.arraycopy(others, i, others, i + 1, moved);
+				others[i] = null;
+			}
+			keys[i] = key;
+			size++;
+			return i;
+		}
+		
+		synchronized JsonObject get(String prefix) {
+			JsonObject values = new JsonObject();
+			// The keys with the prefix are together, from the position where the prefix would be
+			int i = (prefix != null ? Arrays.binarySearch(keys, 0, size, prefix) : 0);
+			for(i = (i < 0 ? -i - 1 : i); i < size && (prefix == null || keys[i].startsWith(prefix)); i++) {
+				JsonObject value = new JsonObject();
+				value.add("value", getValue(i));
+				value.addProperty("timestamp", Instant.ofEpochSecond(Math.floorDiv(epochs[i], 1000000000L), Math.floorMod(epochs[i], 1000000000L)).toString());
+				values.add(keys[i], value);
+			}
+			return values;
+		}
+		
+		private JsonElement getValue(int i) {
+			switch(kinds[i]) {
+				case LONG:
+					return new JsonPrimitive(numbers[i]);
+				case DOUBLE:
+					return new JsonPrimitive(Double.longBitsToDouble(numbers[i]));
+				default:
+					return others[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,835 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.JsonSchemaException;
+import com.networknt.schema.ValidationMessage;
+
+import es.prodevelop.tic.util.JsonSchemaRegistry;
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.KeyDictionary;
+import es.prodevelop.tic.util.LruCache;
+import es.prodevelop.tic.util.Metrics;
+import es.prodevelop.tic.util.Result;
+import es.prodevelop.tic.util.SplitPath;
+import es.prodevelop.tic.util.TicConfiguration;
+import es.prodevelop.tic.util.TimeUtils;
+import es.prodevelop.tic.util.ValidationRules;
+
+/**
+ * Flattens, builds and validates TIC4.0 messages with the tables precomputed from one configuration.
+ * <br/>The tables are not modified after the engine is created. The parsed keys caches and the last values of the delta mode 
+ * are modified by every message but they are thread safe, so the engine can be shared between threads 
+ * and engines with different configurations can be used side by side. 
+ * A new engine is created when the configuration is reloaded, so the delta mode starts again with a complete message of each entity.
+ * <br/>The {@link StateStore} and the {@link es.prodevelop.tic.util.Metrics} are global to the process: 
+ * they are shared by all the engines and kept when the configuration is reloaded.
+ */
+public class TicEngine {
+	
+	final static Logger logger = Logger.getLogger(TicEngine.class);
+	
+	private static final int DEFAULT_FLAT_PATH_CACHE_SIZE = 4096;
+	private static final int DEFAULT_FLAT_KEY_CACHE_SIZE = 65536;
+	private static final int DEFAULT_DELTA_CACHE_SIZE = 10000;
+	private static final int DEFAULT_DELTA_KEYFRAME_INTERVAL = 100;
+	
+	static {
+		// Each new configuration gets its engine before being published
+		TicConfiguration.addDerived(TicEngine.class, TicEngine::new);
+	}
+	
+	private final TicConfiguration configuration;
+	final List<String> fieldsToPath;
+	final List<String> closeValueKeyFields;
+	final List<String> openValueKeyFields;
+	final List<String> validationKeyFields;
+	final HashMap<String, Boolean> fieldsToPathMap;
+	final HashMap<String, String> pathToFieldMap;
+	final HashMap<String, Boolean> closeValueKeyFieldsMap;
+	final HashMap<String, Boolean> openValueKeyFieldsMap;
+	final HashMap<String, Boolean> validationKeyFieldsMap;
+	final ValidationRules validationRules;
+	final String markerId;
+	final String markerKeyField;
+	final HashMap<String, String> keyFieldPrefixes;
+	private final String defaultIdField;
+	private final String schemaName;
+	private final Downsampler.Aggregation defaultAggregation;
+	private final Map<String, Downsampler.Aggregation> fieldAggregations;
+	// Flat keys parsed with the key fields of this engine, the least recently used are evicted
+	final LruCache<String, FlatPath> flatPaths;
+	// Canonical instances of the generated flat keys, so equal keys of different messages share the same string. 
+	// The least recently used are evicted
+	private final LruCache<String, String> flatKeys;
+	// Last values emitted for each entity in delta mode
+	private final DeltaFilter deltaFilter;
+	
+	/**
+	 * Creates an engine precomputing the tables of a configuration
+	 * @param configuration
+	 */
+	public TicEngine(TicConfiguration configuration) {
+		this.configuration = configuration;
+		fieldsToPath = configuration.getList("FIELD_TO_PATH");
+		closeValueKeyFields = configuration.getList("CLOSE_VALUE_KEYFIELDS");
+		openValueKeyFields = configuration.getList("OPEN_VALUE_KEYFIELDS");
+		validationKeyFields = configuration.getList("VALIDATION_KEY_FIELDS");
+		validationRules = configuration.getValidationRules();
+		fieldsToPathMap = buildMapFromList(fieldsToPath);
+		pathToFieldMap = buildPathToFieldMap();
+		closeValueKeyFieldsMap = buildMapFromList(closeValueKeyFields);
+		openValueKeyFieldsMap = buildMapFromList(openValueKeyFields);
+		validationKeyFieldsMap = buildMapFromList(validationKeyFields);
+		markerId = configuration.get("MARKER_ID");
+		markerKeyField = configuration.get("MARKER_KEYFIELD");
+		keyFieldPrefixes = buildKeyFieldPrefixes();
+		defaultIdField = configuration.get("FIELD_ID");
+		schemaName = configuration.get("SCHEMA_DEFAULT");
+		defaultAggregation = Downsampler.getDefaultAggregation(configuration);
+		fieldAggregations = Downsampler.getFieldAggregations(configuration);
+		Integer cacheSize = configuration.getAsInteger("FLAT_PATH_CACHE_SIZE");
+		flatPaths = new LruCache<String, FlatPath>(cacheSize != null ? cacheSize : DEFAULT_FLAT_PATH_CACHE_SIZE);
+		cacheSize = configuration.getAsInteger("FLAT_KEY_CACHE_SIZE");
+		flatKeys = new LruCache<String, String>(cacheSize != null ? cacheSize : DEFAULT_FLAT_KEY_CACHE_SIZE);
+		Integer deltaEntities = configuration.getAsInteger("DELTA_CACHE_SIZE");
+		Integer keyframeInterval = configuration.getAsInteger("DELTA_KEYFRAME_INTERVAL");
+		deltaFilter = new DeltaFilter(deltaEntities != null ? deltaEntities : DEFAULT_DELTA_CACHE_SIZE, keyframeInterval != null ? keyframeInterval : DEFAULT_DELTA_KEYFRAME_INTERVAL);
+	}
+	
+	/**
+	 * Returns the engine of the current configuration
+	 * @return
+	 */
+	public static TicEngine getDefault() {
+		return TicConfiguration.getDefault().getDerived(TicEngine.class, TicEngine::new);
+	}
+	
+	public TicConfiguration getConfiguration() {
+		return configuration;
+	}
+		
+	public List<JsonObject> getMessages(JsonObject object, String idField, String path) throws Exception{ 
+		return getMessages(object, idField, path, 0, null);
+	}
+	
+	/**
+	 * Flattens a message, combining the samples of each entity into time buckets
+	 * @param object
+	 * @param idField
+	 * @param path The complete path to the element to split by, the entities
+	 * @param bucketMillis Size of the time buckets, 0 to return a message for each sample
+	 * @param aggregation How to combine the numeric values of a bucket (last, min, max, mean), null for the configured one
+	 * @return
+	 * @throws Exception
+	 */
+	public List<JsonObject> getMessages(JsonObject object, String idField, String path, long bucketMillis, String aggregation) throws Exception{ 
+		return getMessages(object, idField, path, bucketMillis, aggregation, false);
+	}
+	
+	/**
+	 * Flattens a message, combining the samples of each entity into time buckets and, in delta mode, 
+	 * returning only the values of each entity that changed since its previous message.
+	 * Messages of the same entity must be flattened in time order in delta mode
+	 * @param object
+	 * @param idField
+	 * @param path The complete path to the element to split by, the entities
+	 * @param bucketMillis Size of the time buckets, 0 to return a message for each sample
+	 * @param aggregation How to combine the numeric values of a bucket (last, min, max, mean), null for the configured one
+	 * @param delta If true, only the changed values are returned and messages without changes are skipped
+	 * @return
+	 * @throws Exception
+	 */
+	public List<JsonObject> getMessages(JsonObject object, String idField, String path, long bucketMillis, String aggregation, boolean delta) throws Exception{ 
+		List<JsonObject> messages = new ArrayList<JsonObject>();
+		getMessages(object, idField, path, bucketMillis, aggregation, delta, messages::add);
+		return messages;
+	}
+	
+	/**
+	 * Flattens a message passing each flat message to the consumer as soon as it is generated, 
+	 * or once all the samples are read when downsampling
+	 * @param object
+	 * @param idField
+	 * @param path The complete path to the element to split by, the entities
+	 * @param bucketMillis Size of the time buckets, 0 to return a message for each sample
+	 * @param aggregation How to combine the numeric values of a bucket (last, min, max, mean), null for the configured one
+	 * @param delta If true, only the changed values are returned and messages without changes are skipped
+	 * @param consumer Receives each flat message
+	 * @throws Exception
+	 */
+	public void getMessages(JsonObject object, String idField, String path, long bucketMillis, String aggregation, boolean delta, Consumer<JsonObject> consumer) throws Exception{ 
+		int count = 0;
+		Downsampler downsampler = (bucketMillis > 0 ? new Downsampler(bucketMillis, aggregation != null ? Downsampler.Aggregation.get(aggregation) : defaultAggregation, fieldAggregations) : null);
+		try {
+			// Get the message properties
+			JsonObject messageProperties = getMessageProperties(object);
+					
+			// Messages are split by the instant of the timestamps, whatever their format
+			long start = System.nanoTime();
+			Map<String, JsonObject> messagesByTimestamp = JsonUtils.splitByInstant(object, "timestamp");
+			long splitNanos = System.nanoTime() - start;
+			long flattenNanos = 0;
+			
+			String finalIdField = (idField != null ? idField : defaultIdField);
+			
+			// Once messages are split by timestamp, we split then again if there is any other field
+			SplitPath splitPath = (path != null ? SplitPath.compile(path) : null);
+			String sender = JsonUtils.getAsString(messageProperties, "sender");
+			// Entities of different senders and split paths are kept apart
+			String entityPrefix = (delta ? sender + '\u0000' + path + '\u0000' : null);
+			
+			Collection<Entry<String, JsonObject>> samples = messagesByTimestamp.entrySet();
+			if(delta) {
+				// Changes are computed against the previous sample of the entity, so the samples go in time order
+				List<Entry<String, JsonObject>> sorted = new ArrayList<Entry<String, JsonObject>>(samples);
+				sorted.sort(Comparator.comparingLong(e -> TimeUtils.getEpochNanosFromTimestamp(e.getKey())));
+				samples = sorted;
+			}
+			
+			int sample = 0;
+			for(Entry<String, JsonObject> entry : samples) {
+				JsonObject messageByTimestamp = entry.getValue();
+				Iterable<JsonObject> messagesByArray = (splitPath != null ? splitPath.split(messageByTimestamp) : Collections.singletonList(messageByTimestamp));
+				// For each one of the split messages, split lazily
+				Iterator<JsonObject> iterator = messagesByArray.iterator();
+				while(true) {
+					start = System.nanoTime();
+					JsonObject message = iterator.hasNext() ? iterator.next() : null;
+					splitNanos += System.nanoTime() - start;
+					if(message == null) {
+						break;
+					}
+					
+					sample++;
+					start = System.nanoTime();
+					// Copy the header for each message
+					if(messageProperties != null) {
+						addMessageProperties(message, messageProperties, sample);			
+					}
+					// Flatten
+					JsonObject flatMessage = flatten(message, finalIdField);
+					String entity = (splitPath != null && (downsampler != null || delta || StateStore.isEnabled()) ? splitPath.getEntityKey(message, finalIdField) : "");
+					// Keep the last values of the entity before they are combined or filtered
+					if(StateStore.isEnabled()) {
+						StateStore.update(sender, splitPath != null ? stripDot(entity) : null, entry.getKey(), flatMessage, markerId);
+					}
+					// Return the message, or just add it to its bucket when downsampling
+					JsonObject output = null;
+					if(downsampler != null) {
+						downsampler.add(entry.getKey(), entity, flatMessage);
+					}
+					else if(delta) {
+						output = getDelta(entityPrefix + entity, flatMessage, finalIdField);
+					}
+					else {
+						output = flatMessage;
+					}
+					flattenNanos += System.nanoTime() - start;
+					if(output != null) {
+						consumer.accept(output);
+						count++;
+					}
+				}
+			}
+			if(downsampler != null && delta) {
+				for(Entry<String, JsonObject> bucket : downsampler.getMessagesByEntity()) {
+					JsonObject output = getDelta(entityPrefix + bucket.getKey(), bucket.getValue(), finalIdField);
+					if(output != null) {
+						consumer.accept(output);
+						count++;
+					}
+				}
+			}
+			else if(downsampler != null) {
+				for(JsonObject output : downsampler.getMessages()) {
+					consumer.accept(output);
+					count++;
+				}
+			}
+			Metrics.recordNanos("flatten.split", splitNanos);
+			Metrics.recordNanos("flatten.flatten", flattenNanos);
+		}
+		catch(Exception e) {
+			logger.error("Error in getMessages: " + e.toString());
+		}
+		
+		// Flat messages generated by each input message
+		Metrics.count("flatten.inputMessages");
+		Metrics.count("flatten.outputMessages", count);
+		Metrics.recordValue("flatten.fanout", count);
+	}
+	
+	private static String stripDot(String entity) {
+		return entity.endsWith(".") ? entity.substring(0, entity.length() - 1) : entity;
+	}
+	
+	/**
+	 * Returns the changes of the entity, null if nothing changed
+	 */
+	private JsonObject getDelta(String entity, JsonObject flatMessage, String idField) {
+		JsonObject changes = deltaFilter.filter(entity, flatMessage, idField);
+		if(changes == null) {
+			Metrics.count("flatten.unchangedMessages");
+		}
+		return changes;
+	}
+	
+	/**
+	 * Creates a map from a list of values
+	 * @return
+	 */	
+	private static HashMap<String, Boolean> buildMapFromList(List<String> values) {		
+		HashMap<String, Boolean> fieldsToMap = new HashMap<String, Boolean>();
+		for(String field : values) {
+			fieldsToMap.put(field, true);
+		}
+		return fieldsToMap;
+	}
+	
+	/**
+	 * Creates the prefix added to the path before the value of each open value key field (#name#)
+	 * @return
+	 */
+	private HashMap<String, String> buildKeyFieldPrefixes() {
+		HashMap<String, String> prefixes = new HashMap<String, String>();
+		for(String field : fieldsToPath) {
+			prefixes.put(field, openValueKeyFieldsMap.get(field) != null ? markerKeyField + field + markerKeyField : "");
+		}
+		return prefixes;
+	}
+	
+	private HashMap<String, String> buildPathToFieldMap() {		
+		HashMap<String, String> fieldsToMap = new HashMap<String, String>();
+		for(String field : fieldsToPath) {
+			Set<String> values = validationRules.getAllowedValues(field);
+			if(values != null) {
+				for(String value : values) {
+					fieldsToMap.put(value, field);
+				}
+			}
+		}
+		return fieldsToMap;
+	}
+
+	public JsonObject flatten(JsonObject object, String idField) {
+		JsonObject flat = new JsonObject();
+		try {
+			if(object == null) {
+				return null;
+			}		
+			
+			String currentPath = "";			
+			
+			flatten(flat, object, idField, currentPath);
+			
+			return flat;
+		}
+		catch(Exception e) {
+			logger.error("Error in flatten: " + e.toString());
+		}		
+		return flat;
+	}
+	
+	public void flatten(JsonObject flat, JsonObject currentNode, String idField, String path) {
+		flatten(flat, currentNode, idField, path, buildPathWithFields(currentNode));
+	}
+	
+	private void flatten(JsonObject flat, JsonObject currentNode, String idField, String path, String pathFromFieldValues) {				
+		// The current path depends on the fields of the object
+		boolean hasTimestamp = JsonUtils.has(currentNode, "timestamp");
+		String currentPath = path + pathFromFieldValues;
+		
+		for(Entry<String, JsonElement> entry : currentNode.entrySet()) {
+			String key = entry.getKey();
+			JsonElement value = entry.getValue();
+			// Object
+			if(value instanceof JsonObject) {
+				JsonObject child = value.getAsJsonObject();
+				flatten(flat, child, idField, currentPath + key + ".", buildPathWithFields(child));
+    	    } 
+			// Array
+    	    else if(value instanceof JsonArray) {
+    	    	// All arrays must add the id, also if there is just 1 child
+    	    	boolean isOneElementArray = (value.getAsJsonArray().size() == 1);
+	    		for(JsonElement e : value.getAsJsonArray()) {
+    	    		// If the element of the array is an object, flat it
+    	    		if(e.isJsonObject()) {
+    	    			JsonObject element = e.getAsJsonObject();
+    	    			String elementPathFromFieldValues = buildPathWithFields(element);
+    	    			String finalPath = pathFromFieldValues;
+    	    			if(!isOneElementArray && JsonUtils.has(element, idField)) {
+    	    				finalPath = markerId + JsonUtils.getAsString(element, idField) + "." + pathFromFieldValues;
+    	    			}
+    	    			else if(elementPathFromFieldValues.length() == 0) {
+    	    				finalPath = markerId + "." + pathFromFieldValues;
+    	    			}
+    	    			flatten(flat, element, idField, path + key + "." + finalPath, elementPathFromFieldValues);
+    	    		}
+    	    		// If the array is built from values, keep them
+    	    		else {
+    	    			if(fieldsToPathMap.get(key) == null) {
+    		    			flat.add(getFlatKey(currentPath + key), value);
+    		    		}
+    	    		}
+    	    	}
+	    	}
+			// Property
+	    	else{
+	    		// Add only if the value is not added to the path
+	    		if(!hasTimestamp || fieldsToPathMap.get(key) == null) {
+	    			flat.add(getFlatKey(currentPath + key), value);
+	    		}
+	    	}
+		}
+	}
+	
+	/**
+	 * Returns the canonical instance of a flat key
+	 * @param key
+	 * @return
+	 */
+	private String getFlatKey(String key) {
+		return flatKeys.get(key, k -> k);
+	}
+	
+	/**
+	 * Builds a path getting values from the special fields
+	 * @return
+	 */
+	public String buildPathWithFields(JsonObject currentNode) {
+		// Only observations can have key fields. Timestamp is mandatory
+		if(!JsonUtils.has(currentNode, "timestamp")) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for(String field : fieldsToPath) {
+			if(JsonUtils.has(currentNode, field)) {
+				sb.append(keyFieldPrefixes.get(field)).append(currentNode.get(field).getAsString().toLowerCase()).append("."); 
+			}
+		}
+		return sb.toString();
+	}
+
+	public static JsonObject getMessageProperties(JsonObject object) {
+		JsonObject metadata = JsonUtils.has(object, "msg")? object.get("msg").getAsJsonObject() : null;
+		//object.remove("msg");
+		return metadata;
+	}
+	
+	public static void addMessageProperties(JsonObject object, JsonObject metadata, int sampleId) {
+		// The header may be shared with other messages of the split, so it is copied before adding the sample
+		JsonObject header = JsonUtils.has(object, "msg") ? object.get("msg").getAsJsonObject().deepCopy() : metadata.deepCopy();
+		header.addProperty("sample", sampleId);
+		object.add("msg", header);
+	}
+	
+	public static boolean hasTimestamp(JsonObject object) {
+		return JsonUtils.has(object, "timestamp");
+	}
+	
+	public static String getTimestamp(JsonObject object) {
+		return JsonUtils.getAsString(object, "timestamp");
+	}
+
+	public static boolean hasTimestampRange(JsonObject object) {
+		return JsonUtils.has(object, "starttimestamp") && JsonUtils.has(object, "endtimestamp") ;
+	}
+	
+	public static boolean isInRange(JsonObject object, String timestamp) {
+		if(hasTimestampRange(object)) {
+			return TimeUtils.between(JsonUtils.getAsString(object, "starttimestamp"), JsonUtils.getAsString(object, "endtimestamp"), timestamp);
+		}
+		else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns if a message has a valid Tic4.0 structure
+	 * What to validate:
+	 * 	1. Objects need to have a timestamp or fields added to the path
+	 * @param object
+	 * @return
+	 */
+	public Result validate(JsonObject object) {
+		return validate(object, 0);
+	}
+	
+	/**
+	 * Returns if a message has a valid Tic4.0 structure, stopping after a number of errors.
+	 * When the number of errors is limited, custom validations are skipped if the schema validation fails
+	 * @param object
+	 * @param maxErrors Maximum number of errors to return, 0 for all of them. With 1 the schema validation stops at the first error
+	 * @return
+	 */
+	public Result validate(JsonObject object, int maxErrors) {
+		Result result = new Result();
+		result.setMaxErrors(maxErrors);
+		try {
+			if(object == null) {
+				return null;
+			}
+			
+			validateMessage(result, object, maxErrors);
+			
+			// Set the result status
+			if(result.hasErrors()) {
+				result.setResultKo();
+			}
+			else {
+				result.setResultOk();
+				result.addMessage("The JSON file is compliant with TIC 4.0");
+			}
+		}
+		catch(Exception e) {
+			logger.error("Error in validate: " + e.toString());
+			result.setResultKo();
+			result.addError(e.toString());
+		}
+		return result;
+	}
+	
+	/**
+	 * Runs the schema and the custom validations adding the errors to the result
+	 */
+	private void validateMessage(Result result, JsonObject object, int maxErrors) {
+		// Json schema validation
+		JsonSchema schema = (maxErrors == 1 ? JsonSchemaRegistry.getFailFast(schemaName) : JsonSchemaRegistry.get(schemaName));
+		
+		// The schema validator works on a Jackson tree, convert the parsed message instead of serializing and parsing it again
+		long start = System.nanoTime();
+	    JsonNode jsonNode = JsonUtils.toJsonNode(object);			
+		Set<ValidationMessage> errors;
+		try {
+			errors = schema.validate(jsonNode);
+		}
+		catch(JsonSchemaException e) {
+			// A fail fast schema throws the first error found
+			if(e.getValidationMessages() == null || e.getValidationMessages().isEmpty()) {
+				throw e;
+			}
+			errors = e.getValidationMessages();
+		}
+		for(ValidationMessage vm : errors) {
+			result.addError(vm.getMessage().substring(2));
+		}
+		Metrics.record("validate.schema", start);
+		
+		// Custom validations
+		if(maxErrors <= 0 || !result.hasErrors()) {
+			start = System.nanoTime();
+			String currentPath = "";
+			validate(result, object, currentPath);
+			Metrics.record("validate.custom", start);
+		}
+		Metrics.count("validate.validationErrors", result.getErrors().size());
+	}
+	
+	/**
+	 * Validates a Tic4.0 message and, if it is valid, flattens it reusing the same parsed tree. 
+	 * The tree is walked to validate it and walked again to split and flatten its samples
+	 * @param object
+	 * @param idField
+	 * @param path The complete path to the element to split by
+	 * @param maxErrors Maximum number of errors to return, 0 for all of them
+	 * @return A result with the validation errors or with the flat messages if the message is valid
+	 * @throws Exception
+	 */
+	public Result ingest(JsonObject object, String idField, String path, int maxErrors) throws Exception {
+		Result result = new Result();
+		result.setMaxErrors(maxErrors);
+		if(object == null) {
+			result.setResultKo();
+			return result;
+		}
+		
+		validateMessage(result, object, maxErrors);
+		if(result.hasErrors()) {
+			result.setResultKo();
+			return result;
+		}
+		
+		result.setResultOk();
+		for(JsonObject m : getMessages(object, idField, path)) {
+			result.addMessage(m);
+		}
+		return result;
+	}
+	
+	public void validate(Result result, JsonObject currentNode, String path) {				
+		
+		for(Entry<String, JsonElement> entry : currentNode.entrySet()) {
+			// Stop walking the tree once there are enough errors
+			if(result.isErrorLimitReached()) {
+				return;
+			}
+			String key = entry.getKey();
+			JsonElement value = entry.getValue();
+			// Object
+			if(value instanceof JsonObject) {
+				// Objects do not need a validation, propagate to children
+				validate(result, value.getAsJsonObject(), path + key + ".");
+    	    } 
+			// Array
+    	    else if(value instanceof JsonArray) {
+    	    	validateArray(result, value.getAsJsonArray(), path + key);
+	    	}
+			// Property
+	    	else{
+	    		if(!validationRules.isAllowed(key, value.getAsJsonPrimitive())) {
+	    			result.addError(configuration.getError("ERROR_PROPERTY_NOT_ALLOWED_VALUE", path + key, JsonUtils.getAsString(currentNode, key)));
+	    		}
+	    	}
+		}
+	}
+	
+	/**
+	 * Arrays must have elements that have a different timestamp value or at least special fields that do not repeat themselves.
+	 * Elements are grouped by the values of their key fields in one pass, counting the timestamps of each group
+	 */
+	private void validateArray(Result result, JsonArray array, String path) {
+		HashMap<String, ArrayKeyGroup> groups = new HashMap<String, ArrayKeyGroup>();
+		int duplicated = 0;
+		StringBuilder sb = new StringBuilder();
+		
+		for(int i = 0; i < array.size(); i++) {
+			if(result.isErrorLimitReached()) {
+				return;
+			}
+			JsonElement e = array.get(i);
+			// If the element of the array is an object, build an unique identifier from its properties
+			if(e.isJsonObject()) {
+				JsonObject element = e.getAsJsonObject();
+				// Build a unique identifier using the object values of special fields
+				sb.setLength(0);
+				sb.append("key_");
+				for(String field : validationKeyFields) {
+					if(JsonUtils.has(element, field)) {
+						sb.append(element.get(field).getAsString().toLowerCase()).append("."); 
+					}
+				}
+				// Remove last dot
+				if(sb.length() > 4) {
+					sb.deleteCharAt(sb.length() - 1);
+				}
+				
+				ArrayKeyGroup group = groups.computeIfAbsent(sb.toString(), k -> new ArrayKeyGroup());
+				group.size++;
+				String timestamp = JsonUtils.getAsString(element, "timestamp");
+				if(timestamp != null) {
+					// Each timestamp repeated in the group is reported once
+					if(group.timestamps.merge(timestamp, 1, Integer::sum) == 2) {
+						duplicated++;
+					}
+				}
+				else {
+					group.withoutTimestamp.add(i);
+				}
+				
+				// Validate children
+				validate(result, element, path + "[" + i + "].");
+			}
+		}
+		
+		for(int i = 0; i < duplicated; i++) {
+			result.addError(configuration.getError("ERROR_PROPERTY_DUPLICATED", path));
+		}
+		
+		// Elements that appear more than once and have no timestamp
+		List<Integer> requireTimestamp = new ArrayList<Integer>();
+		for(ArrayKeyGroup group : groups.values()) {
+			if(group.size > 1) {
+				requireTimestamp.addAll(group.withoutTimestamp);
+			}
+		}
+		if(requireTimestamp.isEmpty()) {
+			return;
+		}
+		Collections.sort(requireTimestamp);
+		
+		// An element is reported once for each element without timestamp equal to it (itself included)
+		HashMap<JsonElement, Integer> equalElements = new HashMap<JsonElement, Integer>();
+		for(int i : requireTimestamp) {
+			equalElements.merge(array.get(i), 1, Integer::sum);
+		}
+		for(int i : requireTimestamp) {
+			for(int n = equalElements.get(array.get(i)); n > 0; n--) {
+				result.addError(configuration.getError("ERROR_NO_TIMESTAMP", path + "[" + i + "]"));
+			}
+		}
+	}
+	
+	/**
+	 * Elements of an array with the same key field values
+	 */
+	private static class ArrayKeyGroup {
+		int size;
+		final HashMap<String, Integer> timestamps = new HashMap<String, Integer>();
+		final List<Integer> withoutTimestamp = new ArrayList<Integer>();
+	}
+
+	
+	/**
+	 * Build a TIC message from a flat json
+	 * @param object
+	 * @return
+	 * @throws Exception
+	 */
+	public List<JsonObject> buildMessages(JsonObject object, String idField) throws Exception{ 
+		List<JsonObject> messages = new ArrayList<JsonObject>();
+		buildMessages(object, idField, messages::add);
+		return messages;
+	}
+	
+	/**
+	 * Build TIC messages from a flat json passing each one to the consumer as soon as it is built
+	 * @param object
+	 * @param idField
+	 * @param consumer Receives each built message
+	 * @throws Exception
+	 */
+	public void buildMessages(JsonObject object, String idField, Consumer<JsonObject> consumer) throws Exception{ 
+		if(object == null) return;
+		
+		try {			
+			// Messages to build
+			List<JsonObject> sourceMessages = getSourceMessages(object);
+			
+			String finalIdField = (idField != null ? idField : defaultIdField);
+			
+			// Build each of the messages
+			long buildNanos = 0;
+			for(JsonObject o : sourceMessages) {
+				long start = System.nanoTime();
+				JsonObject message = buildMessage(o, finalIdField);
+				buildNanos += System.nanoTime() - start;
+				consumer.accept(message);
+			}
+			Metrics.recordNanos("build.build", buildNanos);
+			Metrics.count("build.inputMessages", sourceMessages.size());
+		}
+		catch(Exception e) {
+			logger.error("Error in buildMessages: " + e.toString());
+		}		
+	}
+	
+	/**
+	 * Builds flat messages merging those of the same source message (msg.id) and entity into one TIC message, 
+	 * with the samples of each timestamp added to their arrays. 
+	 * The merged messages of a source message are returned as soon as a flat message of another one is found
+	 * @param json A flat message, a flatten result or an array of them
+	 * @param idField
+	 * @param consumer Receives each merged message
+	 * @throws Exception
+	 */
+	public void mergeMessages(JsonElement json, String idField, Consumer<JsonObject> consumer) throws Exception {
+		if(json == null) {
+			return;
+		}
+		MessageMerger merger = new MessageMerger(this, idField != null ? idField : defaultIdField, consumer);
+		long start = System.nanoTime();
+		int count = 0;
+		for(JsonElement e : json.isJsonArray() ? json.getAsJsonArray() : Collections.singletonList(json)) {
+			if(e.isJsonObject()) {
+				for(JsonObject o : getSourceMessages(e.getAsJsonObject())) {
+					merger.add(o);
+					count++;
+				}
+			}
+		}
+		merger.flush();
+		Metrics.record("build.merge", start);
+		Metrics.count("build.inputMessages", count);
+	}
+	
+	/**
+	 * Returns the flat messages of a flatten result, or the message itself
+	 */
+	private static List<JsonObject> getSourceMessages(JsonObject object) {
+		List<JsonObject> sourceMessages = new ArrayList<JsonObject>();
+		// If it is an array of messages from a flatten result
+		if(JsonUtils.has(object, Result.getMessagesProperty()) && object.get(Result.getMessagesProperty()).isJsonArray()) {
+			// With a key dictionary the messages have the ids of their keys
+			JsonArray keys = (JsonUtils.has(object, Result.getKeysProperty()) && object.get(Result.getKeysProperty()).isJsonArray() ? object.get(Result.getKeysProperty()).getAsJsonArray() : null);
+			for(JsonElement e : object.get(Result.getMessagesProperty()).getAsJsonArray()) {
+				if(e.isJsonObject()) {
+					sourceMessages.add(keys != null ? KeyDictionary.decode(e.getAsJsonObject(), keys) : e.getAsJsonObject());
+				}
+			}
+		}
+		// If it is a single message
+		else {
+			sourceMessages.add(object);
+		}
+		return sourceMessages;
+	}
+	
+	public JsonObject buildMessage(JsonObject object, String idField) throws Exception {
+		// Message to build
+		MessageBuilder builder = new MessageBuilder(this, idField);
+		
+		try {
+			// For each attribute found in the message
+			for(Entry<String, JsonElement> entry : object.entrySet()) {
+				builder.add(entry.getKey(), entry.getValue());
+			}
+		}
+		catch(Exception e) {
+			logger.error("Error in buildMessage: " + e.toString());
+		}		
+		return builder.getTree();
+	}
+	
+	
+}
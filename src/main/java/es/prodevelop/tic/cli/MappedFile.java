@@ -0,0 +1,380 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the messages of a file through memory-mapped regions.
+ * <br/>- Files that start with [ are a json array of messages. The bytes of each element are found by tracking the nesting 
+ * of the json, without parsing it, and handed over as slices of the mapped file.
+ * <br/>- .ndjson and .jsonl files have a message per line, handed over as slices of the mapped file.
+ * <br/>Slices are not parsed here but by the worker threads.
+ * <br/>- Any other file is read as a sequence of json documents (a single message or one message per line).
+ */
+class MappedFile {
+	
+	// Files bigger than this are mapped in several regions
+	static final int REGION_SIZE = 1 << 30;
+	
+	@FunctionalInterface
+	interface MessageConsumer {
+		void accept(Message message) throws Exception;
+	}
+	
+	/**
+	 * A message read from a file, parsed or as the bytes of its line
+	 */
+	static class Message {
+		final String source;
+		private final ByteBuffer bytes;
+		private final JsonElement json;
+		
+		Message(String source, ByteBuffer bytes) {
+			this.source = source;
+			this.bytes = bytes;
+			this.json = null;
+		}
+		
+		Message(String source, JsonElement json) {
+			this.source = source;
+			this.bytes = null;
+			this.json = json;
+		}
+		
+		JsonElement parse() throws IOException {
+			if(json != null) {
+				return json;
+			}
+			try(Reader reader = new InputStreamReader(new ByteBufferInputStream(bytes), StandardCharsets.UTF_8)) {
+				return JsonParser.parseReader(reader);
+			}
+		}
+	}
+	
+	/**
+	 * Reads all the messages of a file in order
+	 * @param path
+	 * @param consumer
+	 * @return The size of the file
+	 * @throws Exception
+	 */
+	static long read(Path path, MessageConsumer consumer) throws Exception {
+		return read(path, REGION_SIZE, consumer);
+	}
+	
+	/**
+	 * Reads all the messages of a file in order, mapping regions of the given size
+	 * @param path
+	 * @param regionSize
+	 * @param consumer
+	 * @return The size of the file
+	 * @throws Exception
+	 */
+	static long read(Path path, int regionSize, MessageConsumer consumer) throws Exception {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size == 0) {
+				return 0;
+			}
+			String name = path.getFileName().toString().toLowerCase();
+			int first = firstCharacter(channel, size);
+			if(first == '[') {
+				readArrays(path.toString(), channel, size, regionSize, consumer);
+			}
+			else if(name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+				readLines(path.toString(), channel, size, regionSize, consumer);
+			}
+			else {
+				readDocuments(path.toString(), channel, size, regionSize, consumer);
+			}
+			return size;
+		}
+	}
+	
+	private static int firstCharacter(FileChannel channel, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 4096));
+		while(buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if(b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != (byte) 0xEF && b != (byte) 0xBB && b != (byte) 0xBF) {
+				return b;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Splits the mapped regions by new lines. Only a line that crosses two regions is copied
+	 */
+	private static void readLines(String source, FileChannel channel, long size, int regionSize, MessageConsumer consumer) throws Exception {
+		ByteBuffer carry = null;
+		int line = 0;
+		for(long position = 0; position < size; position += regionSize) {
+			int length = (int) Math.min(regionSize, size - position);
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			int start = 0;
+			for(int i = 0; i < length; i++) {
+				if(region.get(i) != '\n') {
+					continue;
+				}
+				ByteBuffer bytes = slice(region, start, i);
+				if(carry != null) {
+					bytes = concat(carry, bytes);
+					carry = null;
+				}
+				line++;
+				if(!isBlank(bytes)) {
+					consumer.accept(new Message(source + ":" + line, bytes));
+				}
+				start = i + 1;
+			}
+			if(start < length) {
+				ByteBuffer rest = slice(region, start, length);
+				carry = (carry != null ? concat(carry, rest) : concat(ByteBuffer.allocate(0), rest));
+			}
+		}
+		if(carry != null && !isBlank(carry)) {
+			consumer.accept(new Message(source + ":" + (line + 1), carry));
+		}
+	}
+	
+	/**
+	 * Splits the json arrays of the file into their elements, following the nesting of the json outside strings. 
+	 * Objects out of an array are messages too. Only an element that crosses two regions is copied
+	 */
+	private static void readArrays(String source, FileChannel channel, long size, int regionSize, MessageConsumer consumer) throws Exception {
+		ByteBuffer carry = null;
+		int index = 0;
+		// Nesting level, 1 inside a top level array or object
+		int depth = 0;
+		// If the value at level 1 is an array, whose elements are the messages, or an object, that is a message itself
+		boolean inArray = false;
+		boolean inString = false;
+		boolean escaped = false;
+		for(long position = 0; position < size; position += regionSize) {
+			int length = (int) Math.min(regionSize, size - position);
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			// Start of the current element in the region, the element continues from the previous region if there is a carry
+			int start = 0;
+			for(int i = 0; i < length; i++) {
+				byte b = region.get(i);
+				if(inString) {
+					if(escaped) {
+						escaped = false;
+					}
+					else if(b == '\\') {
+						escaped = true;
+					}
+					else if(b == '"') {
+						inString = false;
+					}
+				}
+				else if(b == '"') {
+					inString = true;
+				}
+				else if(b == '[' || b == '{') {
+					if(depth == 0) {
+						inArray = (b == '[');
+						start = inArray ? i + 1 : i;
+					}
+					depth++;
+				}
+				else if(b == ']' || b == '}') {
+					depth--;
+					if(depth == 0) {
+						ByteBuffer bytes = join(carry, slice(region, start, inArray ? i : i + 1));
+						carry = null;
+						if(!isBlank(bytes)) {
+							consumer.accept(new Message(source + "[" + index++ + "]", bytes));
+						}
+					}
+				}
+				else if(b == ',' && depth == 1 && inArray) {
+					consumer.accept(new Message(source + "[" + index++ + "]", join(carry, slice(region, start, i))));
+					carry = null;
+					start = i + 1;
+				}
+				else if(depth == 0 && !isWhitespace(b)) {
+					throw new IOException(source + ": unexpected character at byte " + (position + i));
+				}
+			}
+			if(depth > 0) {
+				carry = join(carry, slice(region, Math.min(start, length), length));
+			}
+		}
+		if(depth > 0) {
+			throw new IOException(source + ": unexpected end of file inside a json array or object");
+		}
+	}
+	
+	/**
+	 * Parses the json documents of the file, or the elements if it is an array
+	 */
+	private static void readDocuments(String source, FileChannel channel, long size, int regionSize, MessageConsumer consumer) throws Exception {
+		try(JsonReader reader = new JsonReader(new InputStreamReader(new MappedInputStream(channel, size, regionSize), StandardCharsets.UTF_8))) {
+			// Several documents, one after the other
+			reader.setLenient(true);
+			int index = 0;
+			while(reader.peek() != JsonToken.END_DOCUMENT) {
+				if(reader.peek() == JsonToken.BEGIN_ARRAY) {
+					reader.beginArray();
+					while(reader.hasNext()) {
+						consumer.accept(new Message(source + "[" + index++ + "]", JsonParser.parseReader(reader)));
+					}
+					reader.endArray();
+				}
+				else {
+					consumer.accept(new Message(source + "[" + index++ + "]", JsonParser.parseReader(reader)));
+				}
+			}
+		}
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		ByteBuffer duplicate = buffer.duplicate();
+		// Buffer methods, so it also runs on Java 8
+		((Buffer) duplicate).limit(end);
+		((Buffer) duplicate).position(start);
+		return duplicate.slice();
+	}
+	
+	private static ByteBuffer concat(ByteBuffer first, ByteBuffer second) {
+		ByteBuffer joined = ByteBuffer.allocate(first.remaining() + second.remaining());
+		joined.put(first.duplicate()).put(second.duplicate());
+		((Buffer) joined).flip();
+		return joined;
+	}
+	
+	private static ByteBuffer join(ByteBuffer carry, ByteBuffer bytes) {
+		return carry != null ? concat(carry, bytes) : bytes;
+	}
+	
+	private static boolean isBlank(ByteBuffer bytes) {
+		for(int i = bytes.position(); i < bytes.limit(); i++) {
+			if(!isWhitespace(bytes.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Json whitespace and the UTF-8 byte order mark
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == (byte) 0xEF || b == (byte) 0xBB || b == (byte) 0xBF;
+	}
+	
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+	
+	/**
+	 * Reads a whole file mapping one region after the other
+	 */
+	private static class MappedInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long size;
+		private final int regionSize;
+		private long position = 0;
+		private ByteBuffer region = ByteBuffer.allocate(0);
+		
+		MappedInputStream(FileChannel channel, long size, int regionSize) {
+			this.channel = channel;
+			this.size = size;
+			this.regionSize = regionSize;
+		}
+		
+		private boolean next() throws IOException {
+			if(region.hasRemaining()) {
+				return true;
+			}
+			if(position >= size) {
+				return false;
+			}
+			long length = Math.min(regionSize, size - position);
+			region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			position += length;
+			return true;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return next() ? region.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(!next()) {
+				return -1;
+			}
+			int n = Math.min(len, region.remaining());
+			region.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.cli;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import es.prodevelop.tic.util.Metrics;
+
+/**
+ * Writes NDJSON output to numbered files (prefix-00001.ndjson, prefix-00002.ndjson...), 
+ * starting a new file when the current one reaches the maximum size. Files are only rolled between chunks of lines.
+ * <br/>The size is counted from the characters written, so the output is only flushed when the buffer is full or the file is rolled.
+ * The files of a previous run are not overwritten: if the directory already has files of the prefix, the writer is not created.
+ */
+class RollingWriter implements Closeable {
+	
+	private static final int BUFFER_SIZE = 1 << 20;
+	
+	private final Path directory;
+	private final String prefix;
+	private final long maxBytes;
+	private int files = 0;
+	// Bytes of the closed files and of the current one
+	private long bytes = 0;
+	private long fileBytes = 0;
+	private Writer writer;
+	
+	/**
+	 * @param directory
+	 * @param prefix
+	 * @param maxBytes Size to roll the files at, 0 for a single file
+	 * @throws FileAlreadyExistsException If the directory has output files of the prefix
+	 * @throws IOException
+	 */
+	RollingWriter(Path directory, String prefix, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+		// A shorter run would leave the last files of the previous one mixed with its own
+		try(DirectoryStream<Path> existing = Files.newDirectoryStream(directory, prefix + "-*.ndjson")) {
+			for(Path file : existing) {
+				throw new FileAlreadyExistsException(file.toString(), null, "output of a previous run, remove it or write to another directory");
+			}
+		}
+	}
+	
+	/**
+	 * Writes a chunk of complete lines
+	 * @param lines
+	 * @throws IOException
+	 */
+	void write(CharSequence lines) throws IOException {
+		if(lines.length() == 0) {
+			return;
+		}
+		if(writer == null) {
+			open();
+		}
+		writer.append(lines);
+		fileBytes += Metrics.utf8Length(lines);
+		if(maxBytes > 0 && fileBytes >= maxBytes) {
+			roll();
+		}
+	}
+	
+	private void open() throws IOException {
+		files++;
+		Path file = directory.resolve(String.format("%s-%05d.ndjson", prefix, files));
+		writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), StandardCharsets.UTF_8), BUFFER_SIZE);
+		fileBytes = 0;
+	}
+	
+	private void roll() throws IOException {
+		bytes += fileBytes;
+		fileBytes = 0;
+		writer.close();
+		writer = null;
+	}
+	
+	int getFiles() {
+		return files;
+	}
+	
+	long getBytes() {
+		return bytes + fileBytes;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(writer != null) {
+			roll();
+		}
+	}
+}
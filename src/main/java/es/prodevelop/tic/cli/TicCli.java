@@ -0,0 +1,353 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.cli;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.bo.TicBO;
+import es.prodevelop.tic.cli.MappedFile.Message;
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.Result;
+
+/**
+ * Runs flatten, build or validate over files without the web server:
+ * <br/><code>java -jar tic.jar flatten --split che --output out archive/2022-01</code>
+ * <br/>Files are read through memory-mapped regions by one thread while the messages are processed in batches by the worker threads.
+ * The output keeps the order of the input and is written as NDJSON to rolling files.
+ */
+public class TicCli {
+	
+	final static Logger logger = Logger.getLogger(TicCli.class);
+	
+	private static final List<String> COMMANDS = Arrays.asList("flatten", "build", "validate");
+	private static final int BATCH_SIZE = 64;
+	private static final long DEFAULT_MAX_BYTES = 256L << 20;
+	
+	private String command;
+	private final List<Path> inputs = new ArrayList<Path>();
+	private Path output = Paths.get("output");
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private String split;
+	private String idField;
+	private long bucketMillis = 0;
+	private String aggregation;
+	private int maxErrors = 0;
+	
+	// Statistics
+	private long inputBytes = 0;
+	private long messages = 0;
+	private long outputLines = 0;
+	private long errors = 0;
+	
+	/**
+	 * Returns if the arguments are a command of the command line mode
+	 * @param args
+	 * @return
+	 */
+	public static boolean isCommand(String[] args) {
+		return args.length > 0 && COMMANDS.contains(args[0]);
+	}
+	
+	public static void main(String[] args) {
+		System.exit(run(args));
+	}
+	
+	/**
+	 * Runs a command
+	 * @param args
+	 * @return The exit code: 0 if all the messages were processed, 1 if some failed, 2 if the arguments are wrong
+	 */
+	public static int run(String[] args) {
+		configureLogging();
+		TicCli cli = new TicCli();
+		try {
+			cli.parse(args);
+		}
+		catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage(System.err);
+			return 2;
+		}
+		
+		try {
+			return cli.execute();
+		}
+		catch(Exception e) {
+			logger.error("Error in " + cli.command + ": " + e.toString());
+			return 1;
+		}
+	}
+	
+	private void parse(String[] args) {
+		if(!isCommand(args)) {
+			throw new IllegalArgumentException("Unknown command");
+		}
+		command = args[0];
+		for(int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if(!arg.startsWith("--")) {
+				inputs.add(Paths.get(arg));
+				continue;
+			}
+			if(i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value of " + arg);
+			}
+			String value = args[++i];
+			try {
+				switch(arg) {
+					case "--output": output = Paths.get(value); break;
+					case "--threads": threads = Integer.parseInt(value); break;
+					case "--max-bytes": maxBytes = Long.parseLong(value); break;
+					case "--split": split = value; break;
+					case "--subjectidfield": idField = value; break;
+					case "--bucket": bucketMillis = Math.round(Double.parseDouble(value) * 1000); break;
+					case "--aggregation": aggregation = value; break;
+					case "--maxerrors": maxErrors = Integer.parseInt(value); break;
+					default: throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Wrong value of " + arg + ": " + value);
+			}
+		}
+		if(inputs.isEmpty()) {
+			throw new IllegalArgumentException("No input files");
+		}
+		if(threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+	}
+	
+	private static void usage(PrintStream out) {
+		out.println("Usage: java -jar tic.jar <flatten|build|validate> [options] <file or directory>...");
+		out.println("Input files are json arrays of messages, NDJSON (.ndjson, .jsonl) or json documents. Directories are read recursively");
+		out.println("The messages of arrays and NDJSON files are parsed by the worker threads, other json documents are parsed by the reader thread");
+		out.println("  --output <dir>            Directory of the output files, without files of a previous run (default: output)");
+		out.println("  --threads <n>             Worker threads (default: one per processor)");
+		out.println("  --max-bytes <n>           Size of each output file before starting a new one, 0 for a single file (default: 256 MB)");
+		out.println("  --subjectidfield <field>  Field to use as id for array objects (default: arrayid)");
+		out.println("  --split <path>            flatten: complete path to the element to split by");
+		out.println("  --bucket <seconds>        flatten: size of the time buckets to downsample the samples of each entity");
+		out.println("  --aggregation <name>      flatten: last, min, max or mean");
+		out.println("  --maxerrors <n>           validate: stop validating a message after this number of errors");
+	}
+	
+	/**
+	 * The web server logging configuration is not loaded, only warnings are written to the error output
+	 */
+	private static void configureLogging() {
+		Logger root = Logger.getRootLogger();
+		root.removeAllAppenders();
+		root.addAppender(new ConsoleAppender(new PatternLayout("%d{HH:mm:ss} %-5p %c{1} - %m%n"), ConsoleAppender.SYSTEM_ERR));
+		root.setLevel(Level.WARN);
+		// Libraries log through slf4j, which spring boot binds to logback with DEBUG by default. 
+		// Its level is set by reflection, so the code only depends on log4j
+		org.slf4j.Logger slf4jRoot = LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+		try {
+			Class<?> level = Class.forName("ch.qos.logback.classic.Level");
+			slf4jRoot.getClass().getMethod("setLevel", level).invoke(slf4jRoot, level.getField("WARN").get(null));
+		}
+		catch(ReflectiveOperationException e) {
+			// Bound to log4j, already configured
+		}
+	}
+	
+	private int execute() throws Exception {
+		long start = System.nanoTime();
+		List<Path> files = listFiles();
+		// Created before reading, so existing output files stop the command right away
+		RollingWriter rollingWriter = new RollingWriter(output, command, maxBytes);
+		
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		// Batches being processed, in the order they have to be written. When it is full the reader waits
+		BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<Future<Chunk>>(threads * 4);
+		CompletableFuture<Chunk> end = CompletableFuture.completedFuture(null);
+		
+		Exception[] writerError = new Exception[1];
+		Thread writerThread = new Thread(() -> {
+			try(RollingWriter writer = rollingWriter) {
+				Future<Chunk> future;
+				while((future = pending.take()) != end) {
+					Chunk chunk = future.get();
+					writer.write(chunk.lines);
+					messages += chunk.messages;
+					outputLines += chunk.outputLines;
+					errors += chunk.errors;
+				}
+				System.err.println(String.format("%s: %d files, %d messages, %d output lines in %d files (%d MB), %d errors", 
+						command, files.size(), messages, outputLines, writer.getFiles(), writer.getBytes() >> 20, errors));
+			}
+			catch(Exception e) {
+				writerError[0] = e;
+				// Let the reader finish
+				pending.clear();
+			}
+		}, "tic-writer");
+		writerThread.start();
+		
+		try {
+			List<Message> batch = new ArrayList<Message>(BATCH_SIZE);
+			for(Path file : files) {
+				inputBytes += MappedFile.read(file, message -> {
+					batch.add(message);
+					if(batch.size() == BATCH_SIZE) {
+						submit(workers, pending, batch, writerThread);
+					}
+				});
+			}
+			submit(workers, pending, batch, writerThread);
+		}
+		finally {
+			if(writerThread.isAlive()) {
+				pending.put(end);
+			}
+			writerThread.join();
+			workers.shutdown();
+		}
+		if(writerError[0] != null) {
+			throw writerError[0];
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println(String.format("%s: %.1f s, %.1f MB/s read", command, seconds, (inputBytes / 1048576.0) / seconds));
+		return errors > 0 ? 1 : 0;
+	}
+	
+	private void submit(ExecutorService workers, BlockingQueue<Future<Chunk>> pending, List<Message> batch, Thread writerThread) throws Exception {
+		if(batch.isEmpty()) {
+			return;
+		}
+		if(!writerThread.isAlive()) {
+			throw new IOException("The output can not be written");
+		}
+		List<Message> messages = new ArrayList<Message>(batch);
+		batch.clear();
+		pending.put(workers.submit(() -> process(messages)));
+	}
+	
+	private List<Path> listFiles() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		for(Path input : inputs) {
+			if(Files.isDirectory(input)) {
+				try(Stream<Path> walk = Files.walk(input)) {
+					files.addAll(walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+				}
+			}
+			else if(Files.isRegularFile(input)) {
+				files.add(input);
+			}
+			else {
+				throw new IOException("Not found: " + input);
+			}
+		}
+		return files;
+	}
+	
+	/**
+	 * Processes a batch of messages on a worker thread, returning the output lines
+	 */
+	private Chunk process(List<Message> batch) {
+		Chunk chunk = new Chunk();
+		for(Message message : batch) {
+			chunk.messages++;
+			try {
+				JsonElement json = message.parse();
+				switch(command) {
+					case "flatten":
+						for(JsonObject m : TicBO.getMessages(json.getAsJsonObject(), idField, split, bucketMillis, aggregation)) {
+							chunk.add(m);
+						}
+						break;
+					case "build":
+						for(JsonObject m : TicBO.buildMessages(json.getAsJsonObject(), idField)) {
+							chunk.add(m);
+						}
+						break;
+					default:
+						Result result = TicBO.validate(json.getAsJsonObject(), maxErrors);
+						JsonObject line = new JsonObject();
+						line.addProperty("source", message.source);
+						line.add("result", result.getAsJsonObject().get("result"));
+						line.add("errors", result.getErrors());
+						chunk.add(line);
+				}
+			}
+			catch(Exception e) {
+				chunk.errors++;
+				logger.error("Error in " + message.source + ": " + e.toString());
+			}
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Output of a batch of messages
+	 */
+	private static class Chunk {
+		final StringBuilder lines = new StringBuilder();
+		int messages;
+		int outputLines;
+		int errors;
+		
+		void add(JsonObject message) {
+			JsonUtils.write(message, lines);
+			lines.append('\n');
+			outputLines++;
+		}
+	}
+}
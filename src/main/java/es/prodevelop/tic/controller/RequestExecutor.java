@@ -0,0 +1,353 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.controller;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.springframework.http.MediaType;
+
+import es.prodevelop.tic.util.Configuration;
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.Metrics;
+import es.prodevelop.tic.util.Result;
+
+/**
+ * Runs the requests on bounded worker pools instead of the servlet threads, when ASYNC_REQUESTS is enabled.
+ * <br/>Heavy requests (flatten, build, ingest and any request with a big body) and light ones (small validations) 
+ * have their own pool and queue, so big batches can not delay the small messages.
+ * When the queue of a pool is full the request is rejected with 503 and a Retry-After header.
+ * <br/>When a request reaches ASYNC_TIMEOUT it is answered with 503 if nothing was written yet, and removed from the queue 
+ * if it did not start. A task that is already running is not interrupted, but it can not write to the response any more: 
+ * the response is written through {@link #getOutputStream(HttpServletResponse)}, which fails once the request timed out.
+ */
+class RequestExecutor {
+	
+	final static Logger logger = Logger.getLogger(RequestExecutor.class);
+	
+	enum Pool {
+		HEAVY, LIGHT
+	}
+	
+	@FunctionalInterface
+	interface Task {
+		void run() throws Exception;
+	}
+	
+	private static final int DEFAULT_HEAVY_QUEUE = 16;
+	private static final int DEFAULT_LIGHT_THREADS = 2;
+	private static final int DEFAULT_LIGHT_QUEUE = 256;
+	private static final int DEFAULT_LIGHT_MAX_BYTES = 65536;
+	private static final int DEFAULT_RETRY_AFTER = 1;
+	
+	// Null if async requests are disabled
+	private static final RequestExecutor instance = Configuration.getAsBoolean("ASYNC_REQUESTS") ? new RequestExecutor(
+			getInt("ASYNC_HEAVY_THREADS", 0), getInt("ASYNC_HEAVY_QUEUE", DEFAULT_HEAVY_QUEUE), 
+			getInt("ASYNC_LIGHT_THREADS", DEFAULT_LIGHT_THREADS), getInt("ASYNC_LIGHT_QUEUE", DEFAULT_LIGHT_QUEUE), 
+			getInt("ASYNC_LIGHT_MAX_BYTES", DEFAULT_LIGHT_MAX_BYTES), getInt("ASYNC_TIMEOUT", 0), getInt("ASYNC_RETRY_AFTER", DEFAULT_RETRY_AFTER)) : null;
+	// State of the request run by the current worker thread
+	private static final ThreadLocal<RequestState> current = new ThreadLocal<RequestState>();
+	
+	private final ThreadPoolExecutor heavy;
+	private final ThreadPoolExecutor light;
+	private final long lightMaxBytes;
+	private final long timeout;
+	private final String retryAfter;
+	
+	/**
+	 * @param heavyThreads Threads of the heavy pool, 0 for one per processor
+	 * @param heavyQueue
+	 * @param lightThreads Threads of the light pool, 0 for one per processor
+	 * @param lightQueue
+	 * @param lightMaxBytes Light requests with a bigger body run on the heavy pool
+	 * @param timeout Maximum time of a request in milliseconds, 0 for no limit
+	 * @param retryAfter Seconds to wait before retrying a rejected request
+	 */
+	RequestExecutor(int heavyThreads, int heavyQueue, int lightThreads, int lightQueue, long lightMaxBytes, long timeout, int retryAfter) {
+		this.heavy = createPool("tic-heavy-", heavyThreads, heavyQueue);
+		this.light = createPool("tic-light-", lightThreads, lightQueue);
+		this.lightMaxBytes = lightMaxBytes;
+		this.timeout = timeout;
+		this.retryAfter = String.valueOf(retryAfter);
+	}
+	
+	/**
+	 * Runs the task of a request on its worker pool releasing the servlet thread, or on the servlet thread if async requests are disabled.
+	 * Requests with a body bigger than ASYNC_LIGHT_MAX_BYTES always go to the heavy pool
+	 * @param endpoint
+	 * @param pool
+	 * @param request
+	 * @param response
+	 * @param task Writes the response through {@link #getOutputStream(HttpServletResponse)}
+	 * @throws Exception
+	 */
+	static void execute(String endpoint, Pool pool, HttpServletRequest request, HttpServletResponse response, Task task) throws Exception {
+		if(instance == null) {
+			task.run();
+			return;
+		}
+		instance.submit(endpoint, pool, request, response, task);
+	}
+	
+	/**
+	 * Returns the output stream of the response. On a worker thread, writing to it fails once the request timed out
+	 * @param response
+	 * @return
+	 * @throws IOException If the request already timed out
+	 */
+	static OutputStream getOutputStream(HttpServletResponse response) throws IOException {
+		RequestState state = current.get();
+		if(state == null) {
+			return response.getOutputStream();
+		}
+		synchronized(state) {
+			state.checkOpen();
+			return new GuardedOutputStream(response.getOutputStream(), state);
+		}
+	}
+	
+	void submit(String endpoint, Pool pool, HttpServletRequest request, HttpServletResponse response, Task task) throws Exception {
+		long length = request.getContentLengthLong();
+		ThreadPoolExecutor executor = (pool == Pool.LIGHT && length >= 0 && length <= lightMaxBytes) ? light : heavy;
+		
+		AsyncContext context = request.startAsync(request, response);
+		context.setTimeout(timeout);
+		RequestState state = new RequestState(context);
+		long submitted = System.nanoTime();
+		Runnable runnable = () -> {
+			Metrics.record(endpoint + ".queue", submitted);
+			// Timed out while it was queued
+			if(state.isFinished()) {
+				return;
+			}
+			current.set(state);
+			try {
+				task.run();
+			}
+			catch(Exception e) {
+				logger.error("Error in " + endpoint + ": " + e.toString());
+			}
+			finally {
+				current.remove();
+				state.complete();
+			}
+		};
+		context.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				synchronized(state) {
+					if(state.finished) {
+						return;
+					}
+					state.finished = true;
+					Metrics.count(endpoint + ".timeouts");
+					executor.remove(runnable);
+					try {
+						if(!response.isCommitted()) {
+							respond(response, "The request timed out");
+						}
+					}
+					finally {
+						context.complete();
+					}
+				}
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				logger.error("Error in " + endpoint + ": " + event.getThrowable());
+				synchronized(state) {
+					state.finished = true;
+					executor.remove(runnable);
+				}
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		try {
+			executor.execute(runnable);
+		}
+		catch(RejectedExecutionException e) {
+			Metrics.count(endpoint + ".rejected");
+			synchronized(state) {
+				state.finished = true;
+				try {
+					respond(response, "The service is busy, try again later");
+				}
+				finally {
+					context.complete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Responds that the service is saturated and when to try again
+	 */
+	private void respond(HttpServletResponse response, String error) throws IOException {
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", retryAfter);
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		Result result = new Result();
+		result.setResultKo();
+		result.addError(error);
+		Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+		JsonUtils.write(result.getAsJsonObject(), writer);
+		writer.flush();
+	}
+	
+	private static ThreadPoolExecutor createPool(String name, int threads, int queue) {
+		// By default, as many threads as processors
+		int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		return new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new RequestThreadFactory(name));
+	}
+	
+	private static int getInt(String key, int defaultValue) {
+		Integer value = Configuration.getAsInteger(key);
+		return value != null ? value : defaultValue;
+	}
+	
+	/**
+	 * Whether the response of a request was finished, by its task, a timeout or an error. 
+	 * The response is only written or completed holding its lock, so it is never used after it is finished
+	 */
+	private static class RequestState {
+		private final AsyncContext context;
+		private boolean finished;
+		
+		RequestState(AsyncContext context) {
+			this.context = context;
+		}
+		
+		synchronized boolean isFinished() {
+			return finished;
+		}
+		
+		void checkOpen() throws IOException {
+			if(finished) {
+				throw new IOException("The request timed out");
+			}
+		}
+		
+		synchronized void complete() {
+			if(!finished) {
+				finished = true;
+				context.complete();
+			}
+		}
+	}
+	
+	/**
+	 * Output stream of a response that fails once the request is finished
+	 */
+	private static class GuardedOutputStream extends FilterOutputStream {
+		private final RequestState state;
+		
+		GuardedOutputStream(OutputStream out, RequestState state) {
+			super(out);
+			this.state = state;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			synchronized(state) {
+				state.checkOpen();
+				out.write(b);
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized(state) {
+				state.checkOpen();
+				out.write(b, off, len);
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			synchronized(state) {
+				state.checkOpen();
+				out.flush();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			synchronized(state) {
+				state.checkOpen();
+				out.close();
+			}
+		}
+	}
+	
+	private static class RequestThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		RequestThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
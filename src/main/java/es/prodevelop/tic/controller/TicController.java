@@ -32,153 +32,524 @@
 
 package es.prodevelop.tic.controller;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.CrossOrigin;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+import es.prodevelop.tic.bo.StateStore;
 import es.prodevelop.tic.bo.TicBO;
+import es.prodevelop.tic.controller.RequestExecutor.Pool;
+import es.prodevelop.tic.util.BatchUtils;
+import es.prodevelop.tic.util.JsonSchemaRegistry;
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.Metrics;
+import es.prodevelop.tic.util.Metrics.CountingInputStream;
+import es.prodevelop.tic.util.Metrics.CountingOutputStream;
 import es.prodevelop.tic.util.Result;
 
 @RestController
 public class TicController {
 	
 	final static Logger logger = Logger.getLogger(TicController.class);
-		
-	protected static Gson g = new Gson();
+	
+	protected static final String NDJSON_VALUE = "application/x-ndjson";
 	
 	/**
 	 * Validates a TIC4.0 message
+	 * @param maxErrors Stop validating after this number of errors, 1 to just know if the message is valid. 
+	 * With 1 the schema validation stops at the first error, with a bigger number the schema validation runs to completion 
+	 * and only its first errors are returned, the custom validations stop at the limit.
+	 * When it is set, custom validations are skipped if the schema validation fails. By default all the errors are returned
 	 * @param input The json input message to validate
-	 * @return A json object in string format:
+	 * @param response A json object written to the response:
 	 * <br/><b>- result:</b> "ok" / "ko"
 	 * <br><b>- errors:</b> a list with the errors
 	 * @throws Exception
 	 */
 	@RequestMapping(value = "/validate", method = RequestMethod.POST)
 	@CrossOrigin(origins = "*", methods= {RequestMethod.GET,RequestMethod.POST})
-	public String validate(@RequestBody Object input) throws Exception {
-		Result result = new Result();
-		try {
-			@SuppressWarnings("unchecked")
-			Map<String, Object> inputAsMap = (HashMap<String, Object>) input;
-			JsonObject json = g.fromJson(g.toJson(inputAsMap), JsonObject.class);
+	public void validate(
+			@RequestParam(required = false, name = "maxerrors") Integer maxErrors,
+			InputStream input,
+			HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		long start = System.nanoTime();
+		RequestExecutor.execute("validate", Pool.LIGHT, request, response, () -> {
+			CountingInputStream countingInput = new CountingInputStream(input);
+			Result result = new Result();
+			try {
+				long parseStart = System.nanoTime();
+				JsonObject json = JsonUtils.parse(countingInput).getAsJsonObject();
+				Metrics.record("validate.parse", parseStart);
 			
-			result = TicBO.validate(json);
-		}
-		catch (Exception e) {
-			logger.error(toString());
-			result.setResultKo();
-			result.addError(e.toString());
-		}
-		return result.toString();
+				result = TicBO.validate(json, maxErrors != null ? maxErrors : 0);
+			}
+			catch (Exception e) {
+				logger.error(toString());
+				Metrics.count("validate.exceptions");
+				result.setResultKo();
+				result.addError(e.toString());
+			}
+			write("validate", result, start, countingInput, response);
+		});
 	}
 	
 	/**
 	 * Flatten a TIC4.0 message.
 	 * @param entity The complete path to the element to split by. All previous parents will be also split.
 	 * @param idField The field to use as id for array objects in the json message. By default is arrayid.
+	 * @param bucket Size in seconds of the time buckets to downsample the samples of each entity (the elements split by), at least 0.001. By default every sample is returned
+	 * @param aggregation How to combine the numeric values of a bucket: last, min, max or mean. By default the configured one
+	 * @param keyDictionary If true, the keys of the flat messages are replaced with integer ids and returned once in "keys"
+	 * @param delta If true, only the values of each entity that changed since its previous message are returned, 
+	 * with a complete message (msg.keyframe) periodically. The messages of a batch are processed in order
 	 * @param input The json input message to flatten
-	 * @return A json object in string format:
+	 * @param response A json object written directly to the response:
 	 * <br/><b>- result:</b> "ok" / "ko"
 	 * <br><b>- messages:</b> a list with the flat messages. Messages are always split by timestamp (and by entity if provided) so a message will be generated for each one.
 	 * <br><b>- errors:</b> a list with the errors
+	 * <br><b>- keys:</b> with the key dictionary, the keys of the messages. The id of each key is its position
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value = "/flatten", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
 	@CrossOrigin(origins = "*", methods= {RequestMethod.GET,RequestMethod.POST})
-	public String flatten(
+	public void flatten(
 			@RequestParam(required = false, name = "split") String entity, 
 			@RequestParam(required = false, name = "subjectidfield") String idField, 
-			@RequestBody Object input) throws Exception {
-		
-		Result result = new Result();
-		try {			
-			result.setResultOk();
+			@RequestParam(required = false, name = "bucket") Double bucket, 
+			@RequestParam(required = false, name = "aggregation") String aggregation, 
+			@RequestParam(required = false, name = "keydictionary") Boolean keyDictionary, 
+			@RequestParam(required = false, name = "delta") Boolean delta, 
+			InputStream input,
+			HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		long start = System.nanoTime();
+		boolean isDelta = Boolean.TRUE.equals(delta);
+		RequestExecutor.execute("flatten", Pool.HEAVY, request, response, () -> {
+			String endpoint = "flatten";
+			CountingInputStream countingInput = new CountingInputStream(input);
+			CountingOutputStream countingOutput = getOutput(response);
+			Result result = Result.streaming(getWriter(countingOutput));
+			if(Boolean.TRUE.equals(keyDictionary)) {
+				result.useKeyDictionary();
+			}
+			try {			
+				result.setResultOk();
+				long bucketMillis = getBucketMillis(bucket);
 			
-			List<JsonObject> messages = new ArrayList<JsonObject>();
-			if(input instanceof ArrayList) {
-				for(HashMap<String, Object> i : (ArrayList<HashMap<String, Object>>)input) {
-					Map<String, Object> inputAsMap = (HashMap<String, Object>) i;
-					JsonObject json = g.fromJson(g.toJson(inputAsMap), JsonObject.class);
-					messages.addAll(TicBO.getMessages(json, idField, entity));
+				MessageWriter writer = new MessageWriter(result);
+				long parseStart = System.nanoTime();
+				JsonElement json = JsonUtils.parse(countingInput);
+				Metrics.record(endpoint + ".parse", parseStart);
+				if(json.isJsonArray() && isDelta) {
+					// Changes depend on the previous message of each entity, so the batch is flattened in order
+					for(JsonObject m : getObjects(json.getAsJsonArray())) {
+						TicBO.getMessages(m, idField, entity, bucketMillis, aggregation, true, writer);
+					}
+				}
+				else if(json.isJsonArray()) {
+					// Messages of the batch are flattened in parallel keeping their order
+					for(List<JsonObject> flatMessages : BatchUtils.map(getObjects(json.getAsJsonArray()), m -> TicBO.getMessages(m, idField, entity, bucketMillis, aggregation))) {
+						flatMessages.forEach(writer);
+					}
+				}
+				else {
+					TicBO.getMessages(json.getAsJsonObject(), idField, entity, bucketMillis, aggregation, isDelta, writer);				
 				}
+				writer.record(endpoint);
 			}
-			else {
-				Map<String, Object> inputAsMap = (HashMap<String, Object>) input;
-				JsonObject json = g.fromJson(g.toJson(inputAsMap), JsonObject.class);
-				messages = TicBO.getMessages(json, idField, entity);				
+			catch (Exception e) {
+				logger.error(toString());
+				Metrics.count(endpoint + ".exceptions");
+				result.setResultKo();
+				result.addError(e.toString());
 			}
-			
-			for(JsonObject m : messages) {
-				result.addMessage(m);
-			}	
-		}
-		catch (Exception e) {
-			logger.error(toString());
-			result.setResultKo();
-			result.addError(e.toString());
-		}
-		return result.toString();
+			close(endpoint, result, start, countingInput, countingOutput);
+		});
+	}
+	
+	/**
+	 * Flatten a stream of TIC4.0 messages in NDJSON format (one message per line).
+	 * Each flat message is written to the response as soon as it is generated, so the whole batch is never kept in memory.
+	 * @param entity The complete path to the element to split by. All previous parents will be also split.
+	 * @param idField The field to use as id for array objects in the json message. By default is arrayid.
+	 * @param bucket Size in seconds of the time buckets to downsample the samples of each entity of a message, at least 0.001. By default every sample is returned
+	 * @param aggregation How to combine the numeric values of a bucket: last, min, max or mean. By default the configured one
+	 * @param delta If true, only the values of each entity that changed since its previous message are returned, 
+	 * with a complete message (msg.keyframe) periodically
+	 * @param input The NDJSON input messages to flatten
+	 * @param response NDJSON output with a flat message per line. If a line can not be processed, 
+	 * a line with the result "ko" and the error is written in its place
+	 * @throws Exception
+	 */
+	@RequestMapping(value = "/flatten", method = RequestMethod.POST, consumes = NDJSON_VALUE, produces = NDJSON_VALUE)
+	@CrossOrigin(origins = "*", methods= {RequestMethod.GET,RequestMethod.POST})
+	public void flattenStream(
+			@RequestParam(required = false, name = "split") String entity, 
+			@RequestParam(required = false, name = "subjectidfield") String idField, 
+			@RequestParam(required = false, name = "bucket") Double bucket, 
+			@RequestParam(required = false, name = "aggregation") String aggregation, 
+			@RequestParam(required = false, name = "delta") Boolean delta, 
+			InputStream input,
+			HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		long start = System.nanoTime();
+		boolean isDelta = Boolean.TRUE.equals(delta);
+		RequestExecutor.execute("flattenStream", Pool.HEAVY, request, response, () -> {
+			response.setContentType(NDJSON_VALUE);
+			response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		
+			CountingInputStream countingInput = new CountingInputStream(input);
+			CountingOutputStream countingOutput = new CountingOutputStream(RequestExecutor.getOutputStream(response));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(countingInput, StandardCharsets.UTF_8));
+			Writer writer = new BufferedWriter(new OutputStreamWriter(countingOutput, StandardCharsets.UTF_8));
+			boolean ok = true;
+			long bucketMillis;
+			try {
+				bucketMillis = getBucketMillis(bucket);
+			}
+			catch (IllegalArgumentException e) {
+				Result result = new Result();
+				result.setResultKo();
+				result.addError(e.toString());
+				JsonUtils.write(result.getAsJsonObject(), writer);
+				writer.write('\n');
+				writer.flush();
+				Metrics.request("flattenStream", start, countingInput.getCount(), countingOutput.getCount(), false);
+				return;
+			}
+		
+			String line;
+			int lineNumber = 0;
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				if(line.trim().isEmpty()) {
+					continue;
+				}
+				try {
+					JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+					for(JsonObject m : TicBO.getMessages(json, idField, entity, bucketMillis, aggregation, isDelta)) {
+						JsonUtils.write(m, writer);
+						writer.write('\n');
+					}
+				}
+				catch (Exception e) {
+					logger.error("Error in flattenStream, line " + lineNumber + ": " + e.toString());
+					Metrics.count("flattenStream.exceptions");
+					ok = false;
+					Result result = new Result();
+					result.setResultKo();
+					result.addError("line " + lineNumber + ": " + e.toString());
+					JsonUtils.write(result.getAsJsonObject(), writer);
+					writer.write('\n');
+				}
+				// Send the messages of each input line without waiting for the rest of the batch
+				writer.flush();
+			}
+			writer.flush();
+			Metrics.request("flattenStream", start, countingInput.getCount(), countingOutput.getCount(), ok);
+		});
 	}
 	
 	/**
 	 * Build a TIC4.0 message from a flat json
 	 * @param idField The field to use as id for array objects in the json message. By default is arrayid
-	 * @param input The json input message to build
-	 * @return A json object in string format:
+	 * @param merge If true, the flat messages of the same source message (msg.id) and entity are merged into one message 
+	 * with all their samples. Flat messages of a source message must be together, as returned by flatten.
+	 * The merged messages are written as each source message ends, but the whole input is parsed first, as without merge
+	 * @param input The json input message to build. A flatten result with a key dictionary is decoded with its "keys"
+	 * @param response A json object written directly to the response:
 	 * <br/><b>- result:</b> "ok" / "ko"
 	 * <br><b>- messages:</b> a list with the built messages.
 	 * <br><b>- errors:</b> a list with the errors
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value = "/build", method = RequestMethod.POST)
 	@CrossOrigin(origins = "*", methods= {RequestMethod.GET,RequestMethod.POST})
-	public String build(
+	public void build(
 			@RequestParam(required = false, name = "subjectidfield") String idField,
-			@RequestBody Object input) throws Exception {
-		Result result = new Result();
-		try {			
-			result.setResultOk();
+			@RequestParam(required = false, name = "merge") Boolean merge,
+			InputStream input,
+			HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		long start = System.nanoTime();
+		RequestExecutor.execute("build", Pool.HEAVY, request, response, () -> {
+			String endpoint = "build";
+			CountingInputStream countingInput = new CountingInputStream(input);
+			CountingOutputStream countingOutput = getOutput(response);
+			Result result = Result.streaming(getWriter(countingOutput));
+			try {			
+				result.setResultOk();
 			
-			List<JsonObject> messages = new ArrayList<JsonObject>();
-			if(input instanceof ArrayList) {
-				for(HashMap<String, Object> i : (ArrayList<HashMap<String, Object>>)input) {
-					Map<String, Object> inputAsMap = (HashMap<String, Object>) i;
-					JsonObject json = g.fromJson(g.toJson(inputAsMap), JsonObject.class);
-					messages.addAll(TicBO.buildMessages(json, idField));
+				MessageWriter writer = new MessageWriter(result);
+				long parseStart = System.nanoTime();
+				JsonElement json = JsonUtils.parse(countingInput);
+				Metrics.record(endpoint + ".parse", parseStart);
+				if(Boolean.TRUE.equals(merge)) {
+					// Each merged message is written as soon as its source message is complete
+					TicBO.mergeMessages(json, idField, writer);
 				}
+				else if(json.isJsonArray()) {
+					// Messages of the batch are built in parallel keeping their order
+					for(List<JsonObject> builtMessages : BatchUtils.map(getObjects(json.getAsJsonArray()), m -> TicBO.buildMessages(m, idField))) {
+						builtMessages.forEach(writer);
+					}
+				}
+				else {
+					TicBO.buildMessages(json.getAsJsonObject(), idField, writer);				
+				}
+				writer.record(endpoint);
 			}
-			else {
-				Map<String, Object> inputAsMap = (HashMap<String, Object>) input;
-				JsonObject json = g.fromJson(g.toJson(inputAsMap), JsonObject.class);
-				messages = TicBO.buildMessages(json, idField);				
+			catch (Exception e) {
+				logger.error(toString());
+				Metrics.count(endpoint + ".exceptions");
+				result.setResultKo();
+				result.addError(e.toString());
+			}
+			close(endpoint, result, start, countingInput, countingOutput);
+		});
+	}
+	
+	/**
+	 * Validates and flattens TIC4.0 messages, parsing them only once. Only valid messages are flattened.
+	 * The validation and the flatten share the parsed tree but each one walks it, the flatten walks the samples split by timestamp.
+	 * @param entity The complete path to the element to split by. All previous parents will be also split.
+	 * @param idField The field to use as id for array objects in the json message. By default is arrayid.
+	 * @param maxErrors Stop validating a message after this number of errors, with the same limits as in /validate. By default all the errors are returned
+	 * @param keyDictionary If true, the keys of the flat messages are replaced with integer ids and returned once in "keys"
+	 * @param input The json input message, or an array of messages, to validate and flatten
+	 * @param response A json object written directly to the response:
+	 * <br/><b>- result:</b> "ok" / "ko" if any of the messages is not valid
+	 * <br><b>- messages:</b> a list with the flat messages of the valid messages
+	 * <br><b>- errors:</b> a list with the validation errors. In an array of messages each error starts with the position of its message
+	 * <br><b>- keys:</b> with the key dictionary, the keys of the messages. The id of each key is its position
+	 * @throws Exception
+	 */
+	@RequestMapping(value = "/ingest", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
+	@CrossOrigin(origins = "*", methods= {RequestMethod.GET,RequestMethod.POST})
+	public void ingest(
+			@RequestParam(required = false, name = "split") String entity, 
+			@RequestParam(required = false, name = "subjectidfield") String idField, 
+			@RequestParam(required = false, name = "maxerrors") Integer maxErrors,
+			@RequestParam(required = false, name = "keydictionary") Boolean keyDictionary, 
+			InputStream input,
+			HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		long start = System.nanoTime();
+		RequestExecutor.execute("ingest", Pool.HEAVY, request, response, () -> {
+			String endpoint = "ingest";
+			CountingInputStream countingInput = new CountingInputStream(input);
+			CountingOutputStream countingOutput = getOutput(response);
+			int finalMaxErrors = (maxErrors != null ? maxErrors : 0);
+			Result result = Result.streaming(getWriter(countingOutput));
+			if(Boolean.TRUE.equals(keyDictionary)) {
+				result.useKeyDictionary();
+			}
+			try {
+				long parseStart = System.nanoTime();
+				JsonElement json = JsonUtils.parse(countingInput);
+				Metrics.record(endpoint + ".parse", parseStart);
+				if(json.isJsonArray()) {
+					result.setResultOk();
+					// Messages of the batch are ingested in parallel keeping their order
+					List<Result> messageResults = BatchUtils.map(getObjects(json.getAsJsonArray()), m -> TicBO.ingest(m, idField, entity, finalMaxErrors));
+					int i = 0;
+					long serializeStart = System.nanoTime();
+					for(Result messageResult : messageResults) {
+						for(JsonElement m : messageResult.getAsJsonObject().get(Result.getMessagesProperty()).getAsJsonArray()) {
+							result.addMessage(m.getAsJsonObject());
+						}
+						for(JsonElement error : messageResult.getErrors()) {
+							result.addError("message " + i + ": " + error.getAsString());
+						}
+						if(!messageResult.isOk()) {
+							result.setResultKo();
+						}
+						i++;
+					}
+					Metrics.record(endpoint + ".serialize", serializeStart);
+				}
+				else {
+					Result messageResult = TicBO.ingest(json.getAsJsonObject(), idField, entity, finalMaxErrors);
+					long serializeStart = System.nanoTime();
+					result.addAll(messageResult);
+					Metrics.record(endpoint + ".serialize", serializeStart);
+				}
+			}
+			catch (Exception e) {
+				logger.error(toString());
+				Metrics.count(endpoint + ".exceptions");
+				result.setResultKo();
+				result.addError(e.toString());
+			}
+			close(endpoint, result, start, countingInput, countingOutput);
+		});
+	}
+	
+	/**
+	 * Writes the result to the response recording the metrics of the request
+	 */
+	private static void write(String endpoint, Result result, long start, CountingInputStream input, HttpServletResponse response) throws IOException {
+		CountingOutputStream output = getOutput(response);
+		Writer writer = getWriter(output);
+		long serializeStart = System.nanoTime();
+		JsonUtils.write(result.getAsJsonObject(), writer);
+		writer.flush();
+		Metrics.record(endpoint + ".serialize", serializeStart);
+		Metrics.request(endpoint, start, input.getCount(), output.getCount(), result.isOk());
+	}
+	
+
+	
+	private static CountingOutputStream getOutput(HttpServletResponse response) throws IOException {
+		// Fails before touching the response if the request timed out
+		OutputStream output = RequestExecutor.getOutputStream(response);
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		return new CountingOutputStream(output);
+	}
+	
+	private static Writer getWriter(CountingOutputStream output) {
+		return new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Finishes writing a streaming result recording the metrics of the request
+	 */
+	private static void close(String endpoint, Result result, long start, CountingInputStream input, CountingOutputStream output) throws IOException {
+		result.close();
+		Metrics.request(endpoint, start, input.getCount(), output.getCount(), result.isOk());
+	}
+	
+	/**
+	 * Returns the size of the buckets in milliseconds, 0 without bucket
+	 * @throws IllegalArgumentException If the size is not at least a millisecond
+	 */
+	private static long getBucketMillis(Double bucket) {
+		if(bucket == null) {
+			return 0;
+		}
+		long millis = Math.round(bucket * 1000);
+		if(millis <= 0) {
+			throw new IllegalArgumentException("The bucket must be at least 0.001 seconds: " + bucket);
+		}
+		return millis;
+	}
+	
+	private static List<JsonObject> getObjects(JsonArray array) {
+		List<JsonObject> objects = new ArrayList<JsonObject>(array.size());
+		for(JsonElement e : array) {
+			objects.add(e.getAsJsonObject());
+		}
+		return objects;
+	}
+	
+	/**
+	 * Returns the last known values of an entity, kept from the flattened messages when STATE_STORE is enabled
+	 * @param sender Sender of the messages of the entity (msg.sender). Entities with the same id of different senders are kept apart
+	 * @param entity Id of the entity (the arrayid of the element split by, or of the first array element of the keys). 
+	 * Without it, the entities in the store are returned
+	 * @param prefix Return only the keys starting with it
+	 * @return A json object in string format with the value and the timestamp of each key of the entity, 
+	 * or with the entities, their senders, number of keys and last update
+	 */
+	@RequestMapping(value = "/state", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	@CrossOrigin(origins = "*", methods= {RequestMethod.GET})
+	public String state(
+			@RequestParam(required = false, name = "sender") String sender, 
+			@RequestParam(required = false, name = "entity") String entity, 
+			@RequestParam(required = false, name = "prefix") String prefix,
+			HttpServletResponse response) {
+		long start = System.nanoTime();
+		JsonObject state = null;
+		Result result = new Result();
+		if(!StateStore.isEnabled()) {
+			result.addError("The state store is not enabled");
+		}
+		else if(entity == null) {
+			state = StateStore.getEntities();
+		}
+		else {
+			state = StateStore.get(sender, entity, prefix);
+			if(state == null) {
+				result.addError("Entity not found: " + (sender != null ? sender + " " : "") + entity);
 			}
-			
-			for(JsonObject m : messages) {
-				result.addMessage(m);
-			}			
 		}
-		catch (Exception e) {
-			logger.error(toString());
+		if(state == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			result.setResultKo();
-			result.addError(e.toString());
 		}
-		return result.toString();
+		String output = (state != null ? state.toString() : result.toString());
+		Metrics.request("state", start, 0, Metrics.utf8Length(output), state != null);
+		return output;
+	}
+	
+	/**
+	 * Returns the metrics of the service
+	 * @return A json object in string format with the latencies by endpoint and stage, 
+	 * input and output sizes, flat messages generated by message, counters of errors and JVM memory and allocations
+	 */
+	@RequestMapping(value = "/metrics", method = RequestMethod.GET)
+	@CrossOrigin(origins = "*", methods= {RequestMethod.GET})
+	public String metrics() {
+		return Metrics.getStats().toString();
+	}
+	
+	/**
+	 * Returns the status of the compiled json schemas
+	 * @return A json object in string format with the load time and hits of each schema
+	 */
+	@RequestMapping(value = "/schemas", method = RequestMethod.GET)
+	@CrossOrigin(origins = "*", methods= {RequestMethod.GET})
+	public String schemas() {
+		return JsonSchemaRegistry.getStats().toString();
+	}
+	
+	/**
+	 * Writes each message to the result as soon as it is generated, adding up the time spent writing
+	 */
+	private static class MessageWriter implements Consumer<JsonObject> {
+		private final Result result;
+		private long nanos;
+		
+		MessageWriter(Result result) {
+			this.result = result;
+		}
+		
+		@Override
+		public void accept(JsonObject message) {
+			long start = System.nanoTime();
+			result.addMessage(message);
+			nanos += System.nanoTime() - start;
+		}
+		
+		void record(String endpoint) {
+			Metrics.recordNanos(endpoint + ".serialize", nanos);
+		}
 	}
-
 }
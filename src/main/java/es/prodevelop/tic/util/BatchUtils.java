@@ -0,0 +1,147 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes the messages of a batch in parallel on a shared pool with a bounded number of threads.
+ * <br/>Results keep the order of the batch. Batches smaller than BATCH_PARALLEL_THRESHOLD are processed on the calling thread, 
+ * and so are the chunks that do not fit in the queue of the pool (BATCH_QUEUE), which slows down the requests instead of queuing without limit.
+ */
+public class BatchUtils {
+	
+	private static final int DEFAULT_THRESHOLD = 32;
+	private static final int DEFAULT_QUEUE = 256;
+	// Tasks per thread, so threads that get lighter messages take more tasks
+	private static final int TASKS_PER_THREAD = 4;
+	
+	private static final int parallelism = getParallelism();
+	private static final ThreadPoolExecutor executor = parallelism > 1 ? createPool() : null;
+	
+	@FunctionalInterface
+	public interface Task<T, R> {
+		R apply(T item) throws Exception;
+	}
+	
+	/**
+	 * Applies the task to each item of the batch
+	 * @param items
+	 * @param task
+	 * @return The results in the same order as the items
+	 * @throws Exception The first exception thrown by the task, in the order of the items
+	 */
+	public static <T, R> List<R> map(List<T> items, Task<T, R> task) throws Exception {
+		if(executor == null || items.size() < getThreshold()) {
+			List<R> results = new ArrayList<R>(items.size());
+			for(T item : items) {
+				results.add(task.apply(item));
+			}
+			return results;
+		}
+		
+		// Each task processes a contiguous range of the batch
+		int chunkSize = Math.max(1, (items.size() + parallelism * TASKS_PER_THREAD - 1) / (parallelism * TASKS_PER_THREAD));
+		List<Future<List<R>>> chunks = new ArrayList<Future<List<R>>>();
+		for(int start = 0; start < items.size(); start += chunkSize) {
+			List<T> chunk = items.subList(start, Math.min(start + chunkSize, items.size()));
+			chunks.add(executor.submit(() -> {
+				List<R> results = new ArrayList<R>(chunk.size());
+				for(T item : chunk) {
+					results.add(task.apply(item));
+				}
+				return results;
+			}));
+		}
+		
+		List<R> results = new ArrayList<R>(items.size());
+		try {
+			for(Future<List<R>> chunk : chunks) {
+				results.addAll(chunk.get());
+			}
+		}
+		catch(ExecutionException e) {
+			cancel(chunks);
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+		catch(InterruptedException e) {
+			cancel(chunks);
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+		return results;
+	}
+	
+	private static int getParallelism() {
+		Integer configured = Configuration.getAsInteger("BATCH_PARALLELISM");
+		// By default, as many threads as processors
+		return configured != null && configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+	}
+	
+	private static ThreadPoolExecutor createPool() {
+		Integer queue = Configuration.getAsInteger("BATCH_QUEUE");
+		return new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queue != null ? queue : DEFAULT_QUEUE)), 
+				new BatchThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+	
+	private static int getThreshold() {
+		Integer threshold = Configuration.getAsInteger("BATCH_PARALLEL_THRESHOLD");
+		return threshold != null ? threshold : DEFAULT_THRESHOLD;
+	}
+	
+	private static void cancel(List<? extends Future<?>> futures) {
+		for(Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+	
+	private static class BatchThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "tic-batch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -32,64 +32,41 @@
 
 package es.prodevelop.tic.util;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Properties of config.properties, read from the current {@link TicConfiguration}
+ */
 public class Configuration {
-	
-	private static final String CONFIG_PROPERTIES_FILE = "config.properties";
-	private static HashMap<String, Object> properties = load();  
 	    
+    /**
+     * Loads the properties again without publishing them
+     * @return
+     */
     public static HashMap<String, Object> load(){
-        HashMap<String, Object> prop = new HashMap<String, Object>();
-                
-        try {
-            java.util.Properties loadedPropertiesFile = new java.util.Properties();
-            InputStream in = Configuration.class.getClassLoader().getResourceAsStream(CONFIG_PROPERTIES_FILE);
-            loadedPropertiesFile.load(in);
-            in.close();
-            
-            for (String key : loadedPropertiesFile.stringPropertyNames()) {
-            	prop.put(key, loadedPropertiesFile.getProperty(key));
-            }
-        } 
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-        
-        // Overwrite with system environment variables
-        try {
-        	Map<String, String> map = System.getenv();
-            for (String key : map.keySet()) {                
-                prop.put(key, map.get(key));
-            }
-        }
-        catch(Exception e) {
-        	e.printStackTrace();
-        }
-        
-        return prop;
+        return new HashMap<String, Object>(TicConfiguration.load().getProperties());
     }
     
     public static String get(String key) {
-    	return (String) properties.get(key);
+    	return TicConfiguration.getDefault().get(key);
     }
 
     public static void reload() {
-    	properties = load();
+    	TicConfiguration.reload();
     }
         
     public static boolean getAsBoolean(String key) {
-    	return (properties.get(key) != null && Long.parseLong((String) properties.get(key)) > 0) ? true : false;
+    	String value = get(key);
+    	return (value != null && Long.parseLong(value) > 0) ? true : false;
     }
     
     public static Long getAsLong(String key) {
-    	return properties.get(key) != null ? Long.parseLong((String) properties.get(key)) : null;
+    	String value = get(key);
+    	return value != null ? Long.parseLong(value) : null;
     }
     
     public static Integer getAsInteger(String key) {
-    	return properties.get(key) != null ? Integer.parseInt((String) properties.get(key)) : null;
+    	String value = get(key);
+    	return value != null ? Integer.parseInt(value) : null;
     }
 }
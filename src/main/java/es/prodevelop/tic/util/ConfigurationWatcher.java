@@ -0,0 +1,120 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the files of CONFIG_DIR and reloads the configuration when they change.
+ * <br/>The new snapshot and its derived tables are built on the watcher thread, requests keep using the previous one until it is published.
+ */
+public class ConfigurationWatcher {
+	
+	final static Logger logger = Logger.getLogger(ConfigurationWatcher.class);
+	
+	private static final long DEFAULT_DELAY = 500;
+	private static Thread thread;
+	
+	/**
+	 * Starts watching the configuration directory if it is set
+	 */
+	public static synchronized void start() {
+		Path directory = TicConfiguration.getDefault().getDirectory();
+		if(thread != null || directory == null) {
+			return;
+		}
+		if(!Files.isDirectory(directory)) {
+			logger.error("Configuration directory not found: " + directory);
+			return;
+		}
+		thread = new Thread(() -> watch(directory), "tic-config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Watching the configuration directory " + directory);
+	}
+	
+	private static void watch(Path directory) {
+		try(WatchService watcher = directory.getFileSystem().newWatchService()) {
+			directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			while(true) {
+				boolean changed = hasChanges(watcher.take());
+				// Files are usually written in several steps, wait until they stop changing
+				Thread.sleep(getDelay());
+				for(WatchKey key = watcher.poll(); key != null; key = watcher.poll()) {
+					changed |= hasChanges(key);
+				}
+				if(changed) {
+					long start = System.nanoTime();
+					if(TicConfiguration.reload()) {
+						Metrics.record("config.reload", start);
+						logger.info("Configuration reloaded from " + directory);
+					}
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch(IOException e) {
+			logger.error("Error watching the configuration directory: " + e.toString());
+		}
+	}
+	
+	private static boolean hasChanges(WatchKey key) {
+		boolean changed = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == OVERFLOW || TicConfiguration.FILES.contains(String.valueOf(event.context()))) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+	
+	private static long getDelay() {
+		Long delay = Configuration.getAsLong("CONFIG_RELOAD_DELAY");
+		return delay != null ? delay : DEFAULT_DELAY;
+	}
+}
@@ -32,74 +32,49 @@
 
 package es.prodevelop.tic.util;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Messages of errors.properties, read from the current {@link TicConfiguration}
+ */
 public class ErrorUtils {
-	
-	private static final String ERRORS_PROPERTIES_FILE = "errors.properties";
-	private static HashMap<String, Object> errors = load();   
     
+    /**
+     * Loads the messages again without publishing them
+     * @return
+     */
     public static HashMap<String, Object> load(){
-        HashMap<String, Object> prop = new HashMap<String, Object>();
-                
-        try {
-            java.util.Properties loadedPropertiesFile = new java.util.Properties();
-            InputStream in = ErrorUtils.class.getClassLoader().getResourceAsStream(ERRORS_PROPERTIES_FILE);
-            loadedPropertiesFile.load(in);
-            in.close();
-            
-            for (String key : loadedPropertiesFile.stringPropertyNames()) {
-            	prop.put(key, loadedPropertiesFile.getProperty(key));
-            }
-        } 
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-        
-        // Overwrite with system environment variables
-        try {
-        	Map<String, String> map = System.getenv();
-            for (String key : map.keySet()) {                
-                prop.put(key, map.get(key));
-            }
-        }
-        catch(Exception e) {
-        	e.printStackTrace();
-        }
-        
-        return prop;
+        return new HashMap<String, Object>(TicConfiguration.load().getErrors());
     }
     
     public static String get(String key) {
-    	return (String) errors.get(key);
+    	return TicConfiguration.getDefault().getError(key);
     }
     
     public static String get(String key, String arg0) {
-    	String message = (String) errors.get(key);
-    	return message != null ? message.replace("{0}", arg0) : message;
+    	return TicConfiguration.getDefault().getError(key, arg0);
     }
     
     public static String get(String key, String arg0, String arg1) {
-    	String message = (String) errors.get(key);
-    	return message != null ? message.replace("{0}", arg0).replace("{1}", arg1) : message;
+    	return TicConfiguration.getDefault().getError(key, arg0, arg1);
     }
 
     public static void reload() {
-    	errors = load();
+    	TicConfiguration.reload();
     }
         
     public static boolean getAsBoolean(String key) {
-    	return (errors.get(key) != null && Long.parseLong((String) errors.get(key)) > 0) ? true : false;
+    	String value = get(key);
+    	return (value != null && Long.parseLong(value) > 0) ? true : false;
     }
     
     public static Long getAsLong(String key) {
-    	return errors.get(key) != null ? Long.parseLong((String) errors.get(key)) : null;
+    	String value = get(key);
+    	return value != null ? Long.parseLong(value) : null;
     }
     
     public static Integer getAsInteger(String key) {
-    	return errors.get(key) != null ? Integer.parseInt((String) errors.get(key)) : null;
+    	String value = get(key);
+    	return value != null ? Integer.parseInt(value) : null;
     }
 }
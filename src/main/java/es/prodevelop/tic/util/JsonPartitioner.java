@@ -0,0 +1,367 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Splits a json into one message for each distinct value of a key, walking the source tree only once.
+ * <br/>Each message keeps the array elements whose key is equal to the value of the message or that do not have the key,
+ * and drops null properties and empty arrays, the same as copying the whole message and deleting the other elements.
+ * <br/>Subtrees that are the same for every value are not copied but shared between the messages and the source, 
+ * so the messages must not be modified in place.
+ */
+public class JsonPartitioner {
+	
+	private final String key;
+	// All the values found, in the order they are found
+	private final Set<String> values = new LinkedHashSet<String>();
+	// When splitting by instant, the first value found for each epoch, which is used for all the timestamps of the same instant
+	private final Map<Long, String> instants;
+	
+	private JsonPartitioner(String key, boolean byInstant) {
+		this.key = key;
+		this.instants = byInstant ? new HashMap<Long, String>() : null;
+	}
+	
+	/**
+	 * Split a single json into many depending on the different values of a field
+	 * @param object
+	 * @param key
+	 * @return
+	 */
+	public static List<JsonObject> split(JsonObject object, String key) {
+		return new ArrayList<JsonObject>(split(new JsonPartitioner(key, false), object).values());
+	}
+	
+	/**
+	 * Split a single json into many depending on the instant of a timestamp field, so the same instant written 
+	 * with different offsets or precision (2022-01-01T10:00:00Z, 2022-01-01T11:00:00.000+01:00) goes to the same message.
+	 * Values that are not timestamps are split by their text
+	 * @param object
+	 * @param key
+	 * @return The message of each instant by the first timestamp found for it
+	 */
+	public static Map<String, JsonObject> splitByInstant(JsonObject object, String key) {
+		return split(new JsonPartitioner(key, true), object);
+	}
+	
+	/**
+	 * Returns the message of each value, in the same order as split()
+	 */
+	private static Map<String, JsonObject> split(JsonPartitioner partitioner, JsonObject object) {
+		ObjectPartition root = partitioner.partition(object);
+		
+		Map<String, JsonObject> messages = new LinkedHashMap<String, JsonObject>();
+		for(String value : partitioner.values) {
+			JsonObject message = root.byValue.get(value);
+			// Values found under a node that is kept whole share the root, every message needs its own root
+			messages.put(value, message != null ? message : shallowCopy(root.base));
+		}
+		return messages;
+	}
+	
+	private ObjectPartition partition(JsonObject node) {
+		List<Member> members = new ArrayList<Member>(node.size());
+		Set<String> local = new HashSet<String>();
+		boolean changed = false;
+		
+		for(Map.Entry<String, JsonElement> entry : node.entrySet()) {
+			JsonElement value = entry.getValue();
+			Member member;
+			if(value.isJsonNull()) {
+				changed = true;
+				continue;
+			}
+			else if(value.isJsonObject()) {
+				member = objectMember(entry.getKey(), value.getAsJsonObject());
+			}
+			else if(value.isJsonArray()) {
+				member = arrayMember(entry.getKey(), value.getAsJsonArray());
+			}
+			else {
+				member = new Member(entry.getKey(), value);
+				if(entry.getKey().equals(key)) {
+					String v = normalize(value.getAsString());
+					values.add(v);
+					local.add(v);
+				}
+			}
+			changed |= member.base != value;
+			local.addAll(member.values);
+			members.add(member);
+		}
+		
+		// Nothing depends on the key, the node is the same for every message
+		if(local.isEmpty() && !changed) {
+			return new ObjectPartition(node, Collections.<String, JsonObject>emptyMap());
+		}
+		
+		JsonObject base = project(members, null);
+		Map<String, JsonObject> byValue = new HashMap<String, JsonObject>();
+		for(String v : local) {
+			byValue.put(v, project(members, v));
+		}
+		return new ObjectPartition(base, byValue);
+	}
+	
+	/**
+	 * Builds the node for a value (or for values not found in the node when the value is null)
+	 */
+	private static JsonObject project(List<Member> members, String value) {
+		JsonObject projection = new JsonObject();
+		for(Member member : members) {
+			JsonElement e = (value != null && member.values.contains(value)) ? member.project(value) : member.base;
+			if(e != null) {
+				projection.add(member.name, e);
+			}
+		}
+		return projection;
+	}
+	
+	private Member objectMember(String name, JsonObject child) {
+		String own = getOwnValue(child);
+		ObjectPartition partition = partition(child);
+		// An object (not in an array) with other value is kept as it is, only cleaning its empty values
+		if(own != null) {
+			return new Member(name, clean(child), Collections.singleton(own)) {
+				@Override
+				JsonElement project(String value) {
+					return partition.get(value);
+				}
+			};
+		}
+		return new Member(name, partition.base, partition.byValue.keySet()) {
+			@Override
+			JsonElement project(String value) {
+				return partition.get(value);
+			}
+		};
+	}
+	
+	private Member arrayMember(String name, JsonArray array) {
+		if(array.size() == 0) {
+			return new Member(name, null);
+		}
+		
+		int size = array.size();
+		JsonElement[] shared = new JsonElement[size];
+		ObjectPartition[] partitions = new ObjectPartition[size];
+		List<Integer> common = new ArrayList<Integer>();
+		Map<String, List<Integer>> owned = new HashMap<String, List<Integer>>();
+		Set<String> local = new HashSet<String>();
+		boolean changed = false;
+		
+		for(int i = 0; i < size; i++) {
+			JsonElement e = array.get(i);
+			if(e.isJsonObject()) {
+				String own = getOwnValue(e.getAsJsonObject());
+				partitions[i] = partition(e.getAsJsonObject());
+				if(own != null) {
+					owned.computeIfAbsent(own, k -> new ArrayList<Integer>()).add(i);
+					local.add(own);
+					changed = true;
+					continue;
+				}
+				local.addAll(partitions[i].byValue.keySet());
+				changed |= partitions[i].base != e;
+			}
+			else {
+				shared[i] = e;
+			}
+			common.add(i);
+		}
+		
+		JsonElement base = changed ? projectArray(array, shared, partitions, common, Collections.<Integer>emptyList(), null) : array;
+		return new Member(name, base, local) {
+			@Override
+			JsonElement project(String value) {
+				List<Integer> ownedByValue = owned.get(value);
+				return projectArray(array, shared, partitions, common, ownedByValue != null ? ownedByValue : Collections.<Integer>emptyList(), value);
+			}
+		};
+	}
+	
+	/**
+	 * Builds the array for a value merging, in the original order, the elements without value and the ones with that value
+	 */
+	private static JsonArray projectArray(JsonArray array, JsonElement[] shared, ObjectPartition[] partitions, List<Integer> common, List<Integer> owned, String value) {
+		JsonArray projection = new JsonArray(common.size() + owned.size());
+		int c = 0, o = 0;
+		while(c < common.size() || o < owned.size()) {
+			int i = (o >= owned.size() || (c < common.size() && common.get(c) < owned.get(o))) ? common.get(c++) : owned.get(o++);
+			if(shared[i] != null) {
+				projection.add(shared[i]);
+			}
+			else {
+				projection.add(value != null ? partitions[i].get(value) : partitions[i].base);
+			}
+		}
+		return projection.size() > 0 ? projection : null;
+	}
+	
+	private String getOwnValue(JsonObject object) {
+		JsonElement value = object.get(key);
+		return value != null && value.isJsonPrimitive() ? normalize(value.getAsString()) : null;
+	}
+	
+	/**
+	 * Returns the value that represents a value of the key, the first timestamp found for the same instant when splitting by instant
+	 */
+	private String normalize(String value) {
+		if(instants == null) {
+			return value;
+		}
+		long epoch = TimeUtils.getEpochNanosFromTimestamp(value);
+		if(epoch == TimeUtils.INVALID_EPOCH) {
+			return value;
+		}
+		String first = instants.putIfAbsent(epoch, value);
+		return first != null ? first : value;
+	}
+	
+	/**
+	 * Removes null properties and empty arrays, returning the same object if there is nothing to remove
+	 */
+	private static JsonObject clean(JsonObject node) {
+		JsonObject cleaned = null;
+		for(Map.Entry<String, JsonElement> entry : node.entrySet()) {
+			JsonElement value = entry.getValue();
+			JsonElement result = value;
+			if(value.isJsonNull() || (value.isJsonArray() && value.getAsJsonArray().size() == 0)) {
+				result = null;
+			}
+			else if(value.isJsonObject()) {
+				result = clean(value.getAsJsonObject());
+			}
+			else if(value.isJsonArray()) {
+				result = cleanArray(value.getAsJsonArray());
+			}
+			
+			if(result != value && cleaned == null) {
+				// First change, copy the members already visited
+				cleaned = new JsonObject();
+				for(Map.Entry<String, JsonElement> previous : node.entrySet()) {
+					if(previous.getKey().equals(entry.getKey())) {
+						break;
+					}
+					cleaned.add(previous.getKey(), previous.getValue());
+				}
+			}
+			if(cleaned != null && result != null) {
+				cleaned.add(entry.getKey(), result);
+			}
+		}
+		return cleaned != null ? cleaned : node;
+	}
+	
+	private static JsonArray cleanArray(JsonArray array) {
+		JsonArray cleaned = null;
+		for(int i = 0; i < array.size(); i++) {
+			JsonElement e = array.get(i);
+			JsonElement result = e.isJsonObject() ? clean(e.getAsJsonObject()) : e;
+			if(result != e && cleaned == null) {
+				cleaned = new JsonArray(array.size());
+				for(int j = 0; j < i; j++) {
+					cleaned.add(array.get(j));
+				}
+			}
+			if(cleaned != null) {
+				cleaned.add(result);
+			}
+		}
+		return cleaned != null ? cleaned : array;
+	}
+	
+	private static JsonObject shallowCopy(JsonObject object) {
+		JsonObject copy = new JsonObject();
+		for(Map.Entry<String, JsonElement> entry : object.entrySet()) {
+			copy.add(entry.getKey(), entry.getValue());
+		}
+		return copy;
+	}
+	
+	/**
+	 * Result of partitioning an object: the object for values not found in it and the object for each value found
+	 */
+	private static class ObjectPartition {
+		final JsonObject base;
+		final Map<String, JsonObject> byValue;
+		
+		ObjectPartition(JsonObject base, Map<String, JsonObject> byValue) {
+			this.base = base;
+			this.byValue = byValue;
+		}
+		
+		JsonObject get(String value) {
+			JsonObject projection = byValue.get(value);
+			return projection != null ? projection : base;
+		}
+	}
+	
+	/**
+	 * A property of an object with its value for the values not found in it (null if it is removed) 
+	 * and the values that change it
+	 */
+	private static class Member {
+		final String name;
+		final JsonElement base;
+		final Set<String> values;
+		
+		Member(String name, JsonElement base) {
+			this(name, base, Collections.<String>emptySet());
+		}
+		
+		Member(String name, JsonElement base, Set<String> values) {
+			this.name = name;
+			this.base = base;
+			this.values = values;
+		}
+		
+		JsonElement project(String value) {
+			return base;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.SchemaValidatorsConfig;
+
+/**
+ * Keeps the compiled json schemas so they are only read and compiled once.
+ * The schemas listed in SCHEMAS are compiled when the registry is loaded, with and without fail fast, any other
+ * schema is compiled the first time it is requested and then reused.
+ * Compiled schemas are not modified after being registered, so they can be shared between requests.
+ */
+public class JsonSchemaRegistry {
+	
+	final static Logger logger = Logger.getLogger(JsonSchemaRegistry.class);
+	
+	private static final String FAIL_FAST_SUFFIX = " (fail fast)";
+	private static final Map<String, RegisteredSchema> schemas = new ConcurrentHashMap<String, RegisteredSchema>();
+	
+	static {
+		for(String name : getPreloadedSchemas()) {
+			// Both variants, fail fast is used to validate with maxerrors=1
+			for(String variant : new String[] { name, name + FAIL_FAST_SUFFIX }) {
+				try {
+					get(variant, false);
+				}
+				catch(Exception e) {
+					logger.error("Error loading json schema " + variant + ": " + e.toString());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Forces the compilation of the configured schemas. Called on startup so the first request does not pay for it
+	 */
+	public static void preload() {
+		logger.info("Json schemas loaded: " + schemas.keySet());
+	}
+	
+	/**
+	 * Returns the default schema used to validate TIC4.0 messages
+	 * @return
+	 */
+	public static JsonSchema getDefault() {
+		return get(Configuration.get("SCHEMA_DEFAULT"));
+	}
+	
+	/**
+	 * Returns the default schema compiled to stop at the first error, compiling it the first time it is requested
+	 * @return
+	 */
+	public static JsonSchema getDefaultFailFast() {
+		return getFailFast(Configuration.get("SCHEMA_DEFAULT"));
+	}
+	
+	/**
+	 * Returns a schema compiled to stop at the first error, compiling it the first time it is requested
+	 * @param name
+	 * @return
+	 */
+	public static JsonSchema getFailFast(String name) {
+		return get(name + FAIL_FAST_SUFFIX);
+	}
+	
+	/**
+	 * Returns a compiled schema from the classpath, compiling it if it was not loaded yet
+	 * @param name
+	 * @return
+	 */
+	public static JsonSchema get(String name) {
+		return get(name, true);
+	}
+	
+	private static JsonSchema get(String name, boolean countHit) {
+		RegisteredSchema registered = schemas.computeIfAbsent(name, RegisteredSchema::new);
+		if(countHit) {
+			registered.hits.increment();
+		}
+		return registered.schema;
+	}
+	
+	/**
+	 * Returns the load time and hits of every registered schema
+	 * @return
+	 */
+	public static JsonObject getStats() {
+		JsonArray list = new JsonArray();
+		schemas.values().forEach(s -> {
+			JsonObject o = new JsonObject();
+			o.addProperty("name", s.name);
+			o.addProperty("loadTimeMs", s.loadTimeMs);
+			o.addProperty("hits", s.hits.sum());
+			list.add(o);
+		});
+		JsonObject stats = new JsonObject();
+		stats.add("schemas", list);
+		return stats;
+	}
+	
+	private static List<String> getPreloadedSchemas() {
+		String value = Configuration.get("SCHEMAS");
+		return value != null ? Arrays.asList(value.split(",")) : Arrays.asList();
+	}
+	
+	private static class RegisteredSchema {
+		final String name;
+		final JsonSchema schema;
+		final long loadTimeMs;
+		final LongAdder hits = new LongAdder();
+		
+		RegisteredSchema(String name) {
+			long start = System.nanoTime();
+			
+			// Fail fast schemas throw an exception with the first error instead of validating the whole message
+			JsonSchema compiled;
+			if(name.endsWith(FAIL_FAST_SUFFIX)) {
+				SchemaValidatorsConfig config = new SchemaValidatorsConfig();
+				config.setFailFast(true);
+				compiled = JsonSchemaUtils.getJsonSchemaFromClasspath(name.substring(0, name.length() - FAIL_FAST_SUFFIX.length()), config);
+			}
+			else {
+				compiled = JsonSchemaUtils.getJsonSchemaFromClasspath(name);
+			}
+			// Validators are created lazily by default, build them now so the schema is not modified by requests
+			compiled.initializeValidators();
+			
+			this.loadTimeMs = (System.nanoTime() - start) / 1000000;
+			this.name = name;
+			this.schema = compiled;
+			logger.info("Json schema " + name + " compiled in " + loadTimeMs + " ms");
+		}
+	}
+}
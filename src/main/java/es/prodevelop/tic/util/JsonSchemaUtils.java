@@ -36,6 +36,7 @@ import java.io.InputStream;
 
 import com.networknt.schema.JsonSchema;
 import com.networknt.schema.JsonSchemaFactory;
+import com.networknt.schema.SchemaValidatorsConfig;
 import com.networknt.schema.SpecVersion.VersionFlag;
 
 public class JsonSchemaUtils {
@@ -45,5 +46,11 @@ public class JsonSchemaUtils {
         InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
         return factory.getSchema(is);
     }
+	
+	public static JsonSchema getJsonSchemaFromClasspath(String name, SchemaValidatorsConfig config) {
+        JsonSchemaFactory factory = JsonSchemaFactory.getInstance(VersionFlag.V7);
+        InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+        return factory.getSchema(is, config);
+    }
 
 }
@@ -32,19 +32,36 @@
 
 package es.prodevelop.tic.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
 public class JsonUtils {
 	
@@ -52,6 +69,9 @@ public class JsonUtils {
 	
 	public static Gson g = new Gson();
 	
+	// Writes elements exactly as JsonElement.toString() does
+	private static Gson writer = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+	
 	/**
 	 * Transform from a json string to a JsonObject
 	 * @param json
@@ -62,6 +82,100 @@ public class JsonUtils {
 		return g.fromJson(json, JsonObject.class);
 	}
 	
+	/**
+	 * Writes a json element to a stream without building the whole string in memory
+	 * @param element
+	 * @param out
+	 */
+	public static void write(JsonElement element, Appendable out) {
+		writer.toJson(element, out);
+	}
+	
+	/**
+	 * Writes a json element as a value of a streaming json writer
+	 * @param element
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(JsonElement element, JsonWriter out) throws IOException {
+		try {
+			writer.toJson(element, out);
+		}
+		catch(JsonIOException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Parses a json document directly from a stream of UTF-8 bytes
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static JsonElement parse(InputStream in) throws IOException {
+		try(Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			return JsonParser.parseReader(reader);
+		}
+	}
+	
+	/**
+	 * Converts a Gson tree into a Jackson tree without serializing it.
+	 * As when writing the JsonObject with Gson, null properties of objects are skipped
+	 * @param element
+	 * @return
+	 */
+	public static JsonNode toJsonNode(JsonElement element) {
+		JsonNodeFactory factory = JsonNodeFactory.instance;
+		if(element == null || element.isJsonNull()) {
+			return factory.nullNode();
+		}
+		else if(element.isJsonObject()) {
+			ObjectNode node = factory.objectNode();
+			for(Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+				if(!entry.getValue().isJsonNull()) {
+					node.set(entry.getKey(), toJsonNode(entry.getValue()));
+				}
+			}
+			return node;
+		}
+		else if(element.isJsonArray()) {
+			ArrayNode node = factory.arrayNode();
+			for(JsonElement e : element.getAsJsonArray()) {
+				node.add(toJsonNode(e));
+			}
+			return node;
+		}
+		JsonPrimitive primitive = element.getAsJsonPrimitive();
+		if(primitive.isBoolean()) {
+			return factory.booleanNode(primitive.getAsBoolean());
+		}
+		else if(primitive.isNumber()) {
+			return toNumberNode(factory, primitive.getAsString());
+		}
+		return factory.textNode(primitive.getAsString());
+	}
+	
+	/**
+	 * Builds the same kind of number node that Jackson creates when reading the number text
+	 */
+	private static JsonNode toNumberNode(JsonNodeFactory factory, String number) {
+		if(number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+			double value = Double.parseDouble(number);
+			return Double.isInfinite(value) ? factory.numberNode(new BigDecimal(number)) : factory.numberNode(value);
+		}
+		if(number.length() < 10) {
+			return factory.numberNode(Integer.parseInt(number));
+		}
+		BigInteger value = new BigInteger(number);
+		if(value.bitLength() < 32) {
+			return factory.numberNode(value.intValue());
+		}
+		else if(value.bitLength() < 64) {
+			return factory.numberNode(value.longValue());
+		}
+		return factory.numberNode(value);
+	}
+	
 	/**
 	 * Transform a JsonObject into a String json
 	 * @param jsonObject
@@ -72,7 +186,9 @@ public class JsonUtils {
 	}
 	
 	/**
-	 * Split a single json into many depending on the different values of a field
+	 * Split a single json into many depending on the different values of a field.
+	 * The source is walked only once and the parts that do not depend on the field are shared, 
+	 * so the messages must not be modified in place (see JsonPartitioner)
 	 * @param source
 	 * @param field
 	 * @return
@@ -83,28 +199,7 @@ public class JsonUtils {
 			if(object == null) {
 				return messages;
 			}
-			// Get the distinct values for the key attribute
-			Set<String> keyValues = getValuesForKey(object, key);
-
-			// Create a new message for each of the values
-			HashMap<String, JsonObject> jsonMap = new HashMap<String, JsonObject>();
-			for(String k : keyValues) {
-				// Copy all the message
-				jsonMap.put(k, object.deepCopy());
-			}
-			
-			// Foreach of the messages
-			jsonMap.forEach((k,v) -> {
-				// Delete the content that must go in other message
-				deleteIfExistAndNotEqual(v, key, k);
-				// Clean empty properties
-				removeEmptyValues(v);
-			});
-			
-			// Add the final messages
-			jsonMap.forEach((k,v) -> {
-				messages.add(v);
-			});
+			messages = JsonPartitioner.split(object, key);
 		}
 		catch (Exception e) {
 			logger.error("Error: " + e.toString());
@@ -112,72 +207,49 @@ public class JsonUtils {
 		return messages;
 	}
 	
-	public static List<JsonObject> splitByPath (JsonObject object, String path) {
-		List<JsonObject> messages = new ArrayList<JsonObject>();
+	/**
+	 * Split a json into a message for each instant of a timestamp field, whatever the format of the timestamps
+	 * @param object
+	 * @param key
+	 * @return The message of each instant by its timestamp
+	 */
+	public static Map<String, JsonObject> splitByInstant (JsonObject object, String key) {
+		Map<String, JsonObject> messages = new LinkedHashMap<String, JsonObject>();
 		try {
 			if(object == null) {
 				return messages;
 			}
-			
-			if(path == null) {
-				messages.add(object);
-				return messages;
-			}
-			
-			// First we are going to make the copies of the message, so we need to calculate its number
-			getDuplicatesByPath(object, object, "", path, messages);			
+			messages = JsonPartitioner.splitByInstant(object, key);
 		}
 		catch (Exception e) {
-			logger.error("Error in splitByPath: " + e.toString());
+			logger.error("Error: " + e.toString());
 		}		
 		return messages;
 	}
 	
-	public static List<JsonObject> getDuplicatesByPath(JsonObject object, JsonObject currentNode, String currentPath, String pathToSplit, List<JsonObject> messages) {
+	public static List<JsonObject> splitByPath (JsonObject object, String path) {
+		List<JsonObject> messages = new ArrayList<JsonObject>();
 		try {
-			String[] steps = pathToSplit.split("[.]");
-			
-			// If the element is an object
-			if(currentNode.get(steps[0]) instanceof JsonObject) {
-				// If the path is not completed yet
-				if(steps.length > 1) {
-					getDuplicatesByPath(object, currentNode.get(steps[0]).getAsJsonObject(), currentPath + steps[0] + ".", pathToSplit.substring(pathToSplit.indexOf(".") + 1), messages);
-				}
-			}
-			// If the element is an array
-			else if(currentNode.get(steps[0]) instanceof JsonArray) {
-				// Create a document for each of the elements of the array
-				for(JsonElement e : currentNode.get(steps[0]).getAsJsonArray()) {
-					// Duplicate the object
-					JsonObject duplicate = object.deepCopy();
-					// Create a new Array with this object
-					JsonArray newArray = new JsonArray();
-					newArray.add(e);
-					// Replace the array with a new with only this element
-					replaceElement(duplicate, newArray, currentPath + steps[0]);
-					// If there are remaining fields to split by					
-					if(steps.length > 1) {
-						// Continue splitting
-						getDuplicatesByPath(duplicate, e.getAsJsonObject(), currentPath + steps[0] + ".", pathToSplit.substring(pathToSplit.indexOf(".") + 1), messages);
-					}
-					// If not
-					else {
-						// Add the message to the list
-						messages.add(duplicate);
-					}
-				}
+			if(object == null) {
+				return messages;
 			}
-			else if (currentNode.get(steps[0]) == null) {
+			
+			if(path == null) {
 				messages.add(object);
+				return messages;
 			}
 			
+			// A message is built for each combination of the elements of the arrays in the path
+			for(JsonObject message : SplitPath.compile(path).split(object)) {
+				messages.add(message);
+			}
 		}
 		catch (Exception e) {
-			logger.error("Error in getDuplicatesByPath: " + e.toString());
+			logger.error("Error in splitByPath: " + e.toString());
 		}		
 		return messages;
 	}
-
+	
 	public static void replaceElement(JsonObject currentNode, JsonElement replacement, String pathToReplace) {
 		try {
 			String[] steps = pathToReplace.split("[.]");
@@ -0,0 +1,105 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Replaces the keys of flat messages with integer ids, so each key is sent once in a response instead of in every message.
+ * <br/>Ids are the positions of the keys in the dictionary, in the order they were first found.
+ */
+public class KeyDictionary {
+	
+	private final Map<String, String> ids = new HashMap<String, String>();
+	private final JsonArray keys;
+	
+	/**
+	 * @param keys Array where the new keys are appended
+	 */
+	public KeyDictionary(JsonArray keys) {
+		this.keys = keys;
+	}
+	
+	/**
+	 * Returns a copy of a flat message with the ids of its keys
+	 * @param message
+	 * @return
+	 */
+	public JsonObject encode(JsonObject message) {
+		JsonObject encoded = new JsonObject();
+		for(Entry<String, JsonElement> entry : message.entrySet()) {
+			encoded.add(getId(entry.getKey()), entry.getValue());
+		}
+		return encoded;
+	}
+	
+	private String getId(String key) {
+		String id = ids.get(key);
+		if(id == null) {
+			id = Integer.toString(keys.size());
+			keys.add(key);
+			ids.put(key, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Returns a flat message with the keys of the ids of an encoded message
+	 * @param message
+	 * @param keys The dictionary of the response
+	 * @return
+	 */
+	public static JsonObject decode(JsonObject message, JsonArray keys) {
+		JsonObject decoded = new JsonObject();
+		for(Entry<String, JsonElement> entry : message.entrySet()) {
+			int id;
+			try {
+				id = Integer.parseInt(entry.getKey());
+			}
+			catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Key id is not a number: " + entry.getKey());
+			}
+			if(id < 0 || id >= keys.size()) {
+				throw new IllegalArgumentException("Key id not found in the dictionary: " + id);
+			}
+			decoded.add(keys.get(id).getAsString(), entry.getValue());
+		}
+		return decoded;
+	}
+}
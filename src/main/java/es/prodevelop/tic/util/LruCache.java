@@ -0,0 +1,101 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A bounded cache that evicts the entries not used recently, with lock free lookups.
+ * <br/>Entries are kept in two generations of half the size: new and used entries go to the recent generation and, 
+ * when it is full, it becomes the old generation and the previous old one is dropped. 
+ * An entry is evicted when it is not used during two generations, an approximation of least recently used.
+ * @param <K>
+ * @param <V>
+ */
+public class LruCache<K, V> {
+	
+	private final int generationSize;
+	private volatile Map<K, V> recent = new ConcurrentHashMap<K, V>();
+	private volatile Map<K, V> old = new ConcurrentHashMap<K, V>();
+	
+	/**
+	 * @param maxSize Maximum number of entries kept
+	 */
+	public LruCache(int maxSize) {
+		this.generationSize = Math.max(1, maxSize / 2);
+	}
+	
+	/**
+	 * Returns the value of a key, creating it with the loader if it is not in the cache. 
+	 * If two threads load the same key at the same time both get the value stored first
+	 * @param key
+	 * @param loader
+	 * @return
+	 */
+	public V get(K key, Function<? super K, ? extends V> loader) {
+		V value = recent.get(key);
+		if(value != null) {
+			return value;
+		}
+		value = old.get(key);
+		if(value == null) {
+			value = loader.apply(key);
+		}
+		return put(key, value);
+	}
+	
+	private V put(K key, V value) {
+		Map<K, V> current = recent;
+		if(current.size() >= generationSize) {
+			synchronized(this) {
+				if(recent == current) {
+					old = current;
+					recent = new ConcurrentHashMap<K, V>();
+				}
+				current = recent;
+			}
+		}
+		V previous = current.putIfAbsent(key, value);
+		return previous != null ? previous : value;
+	}
+	
+	/**
+	 * Returns the number of entries, up to twice the size of a generation
+	 * @return
+	 */
+	public int size() {
+		return recent.size() + old.size();
+	}
+}
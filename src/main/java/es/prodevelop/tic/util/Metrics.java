@@ -0,0 +1,334 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Runtime metrics of the service: histograms of latencies and values, counters and JVM gauges.
+ * <br/>Names are the operation and the stage or value, i.e. flatten.latency, flatten.parse, validate.schema, flatten.fanout.
+ * Everything is lock free, recording a value is a few atomic increments.
+ * <br/>Metrics are global to the process, the operations of every engine are recorded together.
+ */
+public class Metrics {
+	
+	private static final Map<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+	private static final Map<String, Histogram> values = new ConcurrentHashMap<String, Histogram>();
+	private static final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private static final long startTime = System.currentTimeMillis();
+	
+	/**
+	 * Records the time elapsed since start
+	 * @param name
+	 * @param start Start time from System.nanoTime()
+	 */
+	public static void record(String name, long start) {
+		recordNanos(name, System.nanoTime() - start);
+	}
+	
+	public static void recordNanos(String name, long nanos) {
+		timers.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+	}
+	
+	/**
+	 * Records a value (sizes, number of messages...)
+	 * @param name
+	 * @param value
+	 */
+	public static void recordValue(String name, long value) {
+		values.computeIfAbsent(name, k -> new Histogram()).record(value);
+	}
+	
+	public static void count(String name) {
+		count(name, 1);
+	}
+	
+	public static void count(String name, long amount) {
+		counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+	}
+	
+	/**
+	 * Records a request to an endpoint: latency, input and output sizes and whether the result was ko
+	 * @param endpoint
+	 * @param start Start time from System.nanoTime()
+	 * @param inputBytes
+	 * @param outputBytes
+	 * @param ok
+	 */
+	public static void request(String endpoint, long start, long inputBytes, long outputBytes, boolean ok) {
+		record(endpoint + ".latency", start);
+		count(endpoint + ".requests");
+		if(!ok) {
+			count(endpoint + ".ko");
+		}
+		recordValue(endpoint + ".inputBytes", inputBytes);
+		recordValue(endpoint + ".outputBytes", outputBytes);
+	}
+	
+	/**
+	 * Returns the number of bytes of the string encoded in UTF-8, without encoding it
+	 */
+	public static long utf8Length(CharSequence s) {
+		long length = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				length++;
+			}
+			else if(c < 0x800) {
+				length += 2;
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns all the metrics:
+	 * <br/><b>- timers:</b> latencies in milliseconds (count, mean, max and percentiles)
+	 * <br/><b>- values:</b> distributions of values
+	 * <br/><b>- counters</b>
+	 * <br/><b>- jvm:</b> heap, allocated bytes by the live threads and garbage collections
+	 * @return
+	 */
+	public static JsonObject getStats() {
+		JsonObject stats = new JsonObject();
+		stats.addProperty("uptimeMs", System.currentTimeMillis() - startTime);
+		
+		JsonObject timersJson = new JsonObject();
+		for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(timers).entrySet()) {
+			timersJson.add(entry.getKey(), entry.getValue().toJson(1e6));
+		}
+		stats.add("timers", timersJson);
+		
+		JsonObject valuesJson = new JsonObject();
+		for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(values).entrySet()) {
+			valuesJson.add(entry.getKey(), entry.getValue().toJson(1));
+		}
+		stats.add("values", valuesJson);
+		
+		JsonObject countersJson = new JsonObject();
+		for(Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			countersJson.addProperty(entry.getKey(), entry.getValue().sum());
+		}
+		stats.add("counters", countersJson);
+		
+		stats.add("jvm", getJvmStats());
+		return stats;
+	}
+	
+	private static JsonObject getJvmStats() {
+		JsonObject jvm = new JsonObject();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		jvm.addProperty("heapUsedBytes", heap.getUsed());
+		jvm.addProperty("heapCommittedBytes", heap.getCommitted());
+		jvm.addProperty("heapMaxBytes", heap.getMax());
+		
+		// Allocations are only available in HotSpot based JVMs
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+			if(hotspotThreads.isThreadAllocatedMemorySupported() && hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+				long allocated = 0;
+				for(long bytes : hotspotThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+					allocated += Math.max(bytes, 0);
+				}
+				jvm.addProperty("allocatedBytes", allocated);
+			}
+		}
+		jvm.addProperty("threads", threads.getThreadCount());
+		
+		JsonArray gcs = new JsonArray();
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			JsonObject gcJson = new JsonObject();
+			gcJson.addProperty("name", gc.getName());
+			gcJson.addProperty("collections", gc.getCollectionCount());
+			gcJson.addProperty("timeMs", gc.getCollectionTime());
+			gcs.add(gcJson);
+		}
+		jvm.add("gc", gcs);
+		return jvm;
+	}
+	
+	/**
+	 * Histogram of positive values with 4 buckets for each power of two, so percentiles have an error below 25%
+	 */
+	static class Histogram {
+		private static final int BUCKETS = 256;
+		private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+		
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+		
+		void record(long value) {
+			value = Math.max(value, 0);
+			buckets.incrementAndGet(bucket(value));
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+		
+		static int bucket(long value) {
+			if(value < 4) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return exponent * 4 + (int) ((value >>> (exponent - 2)) & 3);
+		}
+		
+		static long upperBound(int bucket) {
+			if(bucket < 4) {
+				return bucket;
+			}
+			int exponent = bucket / 4;
+			return ((5L + bucket % 4) << (exponent - 2)) - 1;
+		}
+		
+		JsonObject toJson(double scale) {
+			JsonObject json = new JsonObject();
+			long total = count.sum();
+			json.addProperty("count", total);
+			json.addProperty("mean", total > 0 ? sum.sum() / scale / total : 0);
+			json.addProperty("max", max.get() / scale);
+			
+			long[] snapshot = new long[BUCKETS];
+			long snapshotTotal = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = buckets.get(i);
+				snapshotTotal += snapshot[i];
+			}
+			for(double percentile : PERCENTILES) {
+				long rank = (long) Math.ceil(percentile * snapshotTotal);
+				long accumulated = 0;
+				int i = 0;
+				while(i < BUCKETS - 1 && accumulated + snapshot[i] < rank) {
+					accumulated += snapshot[i++];
+				}
+				json.addProperty("p" + Math.round(percentile * 100), snapshotTotal > 0 ? Math.min(upperBound(i), max.get()) / scale : 0);
+			}
+			return json;
+		}
+	}
+	
+	/**
+	 * Input stream that counts the bytes read
+	 */
+	public static class CountingInputStream extends FilterInputStream {
+		private long count;
+		
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) {
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0) {
+				count += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+	}
+	
+	/**
+	 * Output stream that counts the bytes written
+	 */
+	public static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+		
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+	}
+}
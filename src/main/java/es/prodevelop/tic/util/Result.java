@@ -32,20 +32,33 @@
 
 package es.prodevelop.tic.util;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.List;
+import java.util.Map.Entry;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 public class Result {
 	
 	protected static final String RETURN_MESSAGES = "messages";
+	protected static final String RETURN_KEYS = "keys";
 	protected final String RETURN_RESULT = "result";
 	protected final String RETURN_ERRORS = "errors";
 	protected final String RESULT_OK = "ok";
 	protected final String RESULT_KO = "ko";
 
 	protected JsonObject result;
+	// Maximum number of errors to keep, 0 for no limit
+	protected int maxErrors = 0;
+	// When streaming, messages are written as they are added instead of kept in memory
+	protected JsonWriter stream;
+	// When set, the keys of the messages are replaced with the ids of a dictionary
+	protected KeyDictionary keyDictionary;
 	
 	public Result() {
 		result = new JsonObject();
@@ -69,6 +82,56 @@ public class Result {
 		}
 	}
 	
+	/**
+	 * Creates a result that writes its messages to a stream as soon as they are added, with the same format as toString().
+	 * Errors and the result are kept until close() writes them after the messages
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static Result streaming(Writer out) throws IOException {
+		Result r = new Result();
+		r.stream = new JsonWriter(out);
+		// Write NaN and infinite values as toString() does instead of failing in the middle of the response
+		r.stream.setLenient(true);
+		r.stream.beginObject();
+		r.stream.name(RETURN_MESSAGES);
+		r.stream.beginArray();
+		return r;
+	}
+	
+	/**
+	 * Finishes writing a streaming result and flushes the stream
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(stream == null) {
+			return;
+		}
+		stream.endArray();
+		for(Entry<String, JsonElement> entry : result.entrySet()) {
+			if(!entry.getKey().equals(RETURN_MESSAGES)) {
+				stream.name(entry.getKey());
+				JsonUtils.write(entry.getValue(), stream);
+			}
+		}
+		stream.endObject();
+		stream.flush();
+		stream = null;
+	}
+	
+	/**
+	 * Replaces the keys of the flat messages added from now on with integer ids. 
+	 * The keys are returned once, in the "keys" array, where the position of each key is its id
+	 */
+	public void useKeyDictionary() {
+		if(keyDictionary == null) {
+			JsonArray keys = new JsonArray();
+			result.add(RETURN_KEYS, keys);
+			keyDictionary = new KeyDictionary(keys);
+		}
+	}
+	
 	public void setResult(String r) {
 		result.addProperty(RETURN_RESULT, r);
 	}
@@ -82,25 +145,97 @@ public class Result {
 	}
 	
 	public void addMessage(JsonObject message) {
+		if(keyDictionary != null) {
+			message = keyDictionary.encode(message);
+		}
+		if(stream != null) {
+			write(message);
+			return;
+		}
 		result.get(RETURN_MESSAGES).getAsJsonArray().add(message);
 	}
 	
 	public void addMessage(String message) {
+		if(stream != null) {
+			try {
+				stream.value(message);
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return;
+		}
 		result.get(RETURN_MESSAGES).getAsJsonArray().add(message);
 	}
 	
+	/**
+	 * Adds the messages, errors and status of another result
+	 * @param other
+	 */
+	public void addAll(Result other) {
+		for(JsonElement m : other.result.get(RETURN_MESSAGES).getAsJsonArray()) {
+			if(m.isJsonObject()) {
+				addMessage(m.getAsJsonObject());
+			}
+			else if(stream != null) {
+				write(m);
+			}
+			else {
+				result.get(RETURN_MESSAGES).getAsJsonArray().add(m);
+			}
+		}
+		for(JsonElement error : other.getErrors()) {
+			addError(error.getAsString());
+		}
+		if(other.result.has(RETURN_RESULT)) {
+			setResult(other.result.get(RETURN_RESULT).getAsString());
+		}
+	}
+	
+	private void write(JsonElement message) {
+		try {
+			JsonUtils.write(message, stream);
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	public boolean isOk() {
+		return result.has(RETURN_RESULT) && RESULT_OK.equals(result.get(RETURN_RESULT).getAsString());
+	}
+	
 	public JsonArray getErrors() {
 		return result.get(RETURN_ERRORS).getAsJsonArray();
 	}
 	
 	public void addError(String error) {
+		if(isErrorLimitReached()) {
+			return;
+		}
 		result.get(RETURN_ERRORS).getAsJsonArray().add(error);
 	}
 	
+	public void setMaxErrors(int maxErrors) {
+		this.maxErrors = maxErrors;
+	}
+	
+	/**
+	 * Returns if the maximum number of errors has been reached, so there is no need to look for more
+	 * @return
+	 */
+	public boolean isErrorLimitReached() {
+		return maxErrors > 0 && getErrors().size() >= maxErrors;
+	}
+	
 	public boolean hasErrors() {
 		return getErrors().size() > 0;
 	}
 	
+	public JsonObject getAsJsonObject() {
+		return result;
+	}
+	
 	@Override
 	public String toString() {
 		return result.toString();
@@ -109,4 +244,8 @@ public class Result {
 	public static String getMessagesProperty() {
 		return RETURN_MESSAGES;
 	}
+	
+	public static String getKeysProperty() {
+		return RETURN_KEYS;
+	}
 }
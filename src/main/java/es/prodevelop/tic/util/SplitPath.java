@@ -0,0 +1,238 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * A path to split messages by (i.e. che.hoist), compiled once and reused between requests.
+ * <br/>Splitting generates a message for each combination of the elements of the arrays found along the path, 
+ * where each array only keeps the selected element. Combinations are enumerated lazily and each message is built
+ * when it is requested, copying only the objects along the path and sharing the rest with the source.
+ */
+public class SplitPath {
+	
+	private static final int DEFAULT_CACHE_SIZE = 256;
+	// Paths come from requests, the least recently used are evicted. The size is read once, when the class is first used
+	private static final LruCache<String, SplitPath> cache = new LruCache<String, SplitPath>(getCacheSize());
+	
+	private final String path;
+	private final String[] steps;
+	
+	private SplitPath(String path) {
+		this.path = path;
+		this.steps = path.split("[.]");
+	}
+	
+	/**
+	 * Returns the compiled path, from the cache if it was already compiled
+	 * @param path
+	 * @return
+	 */
+	public static SplitPath compile(String path) {
+		return cache.get(path, SplitPath::new);
+	}
+	
+	private static int getCacheSize() {
+		Integer size = Configuration.getAsInteger("SPLIT_PATH_CACHE_SIZE");
+		return size != null && size > 0 ? size : DEFAULT_CACHE_SIZE;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Returns the ids of the elements selected along the path in a message already split by it, 
+	 * which identify the entity of the message
+	 * @param message
+	 * @param idField
+	 * @return
+	 */
+	public String getEntityKey(JsonObject message, String idField) {
+		StringBuilder sb = new StringBuilder();
+		JsonObject node = message;
+		for(String step : steps) {
+			JsonElement child = node.get(step);
+			if(child != null && child.isJsonArray() && child.getAsJsonArray().size() == 1) {
+				child = child.getAsJsonArray().get(0);
+				if(child.isJsonObject()) {
+					sb.append(JsonUtils.getAsString(child.getAsJsonObject(), idField));
+				}
+			}
+			if(child == null || !child.isJsonObject()) {
+				break;
+			}
+			sb.append('.');
+			node = child.getAsJsonObject();
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Returns the messages resulting of splitting the object by the path. 
+	 * If the path does not exist in the object the only message is the object itself. 
+	 * The messages share the elements not included in the path with the source, so they must not be modified in place
+	 * @param object
+	 * @return
+	 */
+	public Iterable<JsonObject> split(JsonObject object) {
+		return () -> new SplitIterator(object);
+	}
+	
+	private class SplitIterator implements Iterator<JsonObject> {
+		// Object where each step is looked up
+		final JsonObject[] nodes = new JsonObject[steps.length];
+		// Value selected for each step: the object or the element of the array
+		final JsonElement[] chosen = new JsonElement[steps.length];
+		// Index of the element selected for each step, -1 if the step is an object
+		final int[] indexes = new int[steps.length];
+		
+		// Steps resolved in the current combination, -1 if there are no more combinations
+		int depth;
+		// Where to continue looking for the next combination
+		int resumeLevel;
+		int resumeStart;
+		boolean pending;
+		
+		SplitIterator(JsonObject object) {
+			nodes[0] = object;
+			depth = seek(0, 0) ? depth : -1;
+			pending = depth >= 0;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if(!pending && depth >= 0) {
+				depth = seek(resumeLevel, resumeStart) ? depth : -1;
+				pending = depth >= 0;
+			}
+			return pending;
+		}
+
+		@Override
+		public JsonObject next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			pending = false;
+			return build(0);
+		}
+		
+		/**
+		 * Looks for the next combination starting at the element start of the step level. 
+		 * Returns false if there are no more combinations
+		 */
+		private boolean seek(int level, int start) {
+			int last = steps.length - 1;
+			while(level >= 0) {
+				JsonElement child = nodes[level].get(steps[level]);
+				boolean descend = false;
+				
+				// The path does not exist, the message is kept as it is at this point
+				if(child == null) {
+					if(start == 0) {
+						depth = level;
+						resumeLevel = level;
+						resumeStart = 1;
+						return true;
+					}
+				}
+				else if(child.isJsonObject()) {
+					if(start == 0 && level < last) {
+						indexes[level] = -1;
+						chosen[level] = child;
+						descend = true;
+					}
+				}
+				else if(child.isJsonArray()) {
+					JsonArray array = child.getAsJsonArray();
+					for(int i = start; i < array.size() && !descend; i++) {
+						indexes[level] = i;
+						chosen[level] = array.get(i);
+						if(level == last) {
+							depth = level + 1;
+							resumeLevel = level;
+							resumeStart = i + 1;
+							return true;
+						}
+						descend = array.get(i).isJsonObject();
+					}
+				}
+				
+				if(descend) {
+					nodes[level + 1] = chosen[level].getAsJsonObject();
+					level++;
+					start = 0;
+				}
+				// Nothing else at this level, continue with the next element of the previous array
+				else {
+					level--;
+					while(level >= 0 && indexes[level] < 0) {
+						level--;
+					}
+					if(level >= 0) {
+						start = indexes[level] + 1;
+					}
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Copies the object of a level replacing the step value with the selected one
+		 */
+		private JsonObject build(int level) {
+			JsonObject copy = new JsonObject();
+			for(Map.Entry<String, JsonElement> entry : nodes[level].entrySet()) {
+				copy.add(entry.getKey(), entry.getValue());
+			}
+			if(level < depth) {
+				JsonElement value = level + 1 < depth ? build(level + 1) : chosen[level];
+				if(indexes[level] >= 0) {
+					JsonArray single = new JsonArray(1);
+					single.add(value);
+					value = single;
+				}
+				copy.add(steps[level], value);
+			}
+			return copy;
+		}
+	}
+}
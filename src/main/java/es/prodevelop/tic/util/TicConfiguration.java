@@ -0,0 +1,315 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable snapshot of the settings of the transformations: the properties of config.properties, 
+ * the allowed values of validation.properties and the messages of errors.properties.
+ * <br/>Snapshots are never modified, so they can be shared between threads and several of them can be used side by side.
+ * The current snapshot is published through an atomic reference: reloading builds a new snapshot and its derived tables 
+ * and then swaps it, so readers never lock nor see a half loaded configuration.
+ */
+public final class TicConfiguration {
+	
+	final static Logger logger = Logger.getLogger(TicConfiguration.class);
+	
+	private static final String CONFIG_PROPERTIES_FILE = "config.properties";
+	private static final String VALIDATION_PROPERTIES_FILE = "validation.properties";
+	private static final String ERRORS_PROPERTIES_FILE = "errors.properties";
+	static final List<String> FILES = Arrays.asList(CONFIG_PROPERTIES_FILE, VALIDATION_PROPERTIES_FILE, ERRORS_PROPERTIES_FILE);
+	// Tables built from each snapshot before it is published
+	private static final Map<Class<?>, Function<TicConfiguration, ?>> derivedFactories = new ConcurrentHashMap<Class<?>, Function<TicConfiguration, ?>>();
+	private static final AtomicReference<TicConfiguration> current = new AtomicReference<TicConfiguration>(load());
+	
+	private final Map<String, String> properties;
+	private final Map<String, String> validation;
+	private final Map<String, String> errors;
+	private final ValidationRules validationRules;
+	private final Map<Class<?>, Object> derived = new ConcurrentHashMap<Class<?>, Object>();
+	
+	private TicConfiguration(Map<String, String> properties, Map<String, String> validation, Map<String, String> errors, ValidationRules validationRules) {
+		this.properties = Collections.unmodifiableMap(properties);
+		this.validation = Collections.unmodifiableMap(validation);
+		this.errors = Collections.unmodifiableMap(errors);
+		this.validationRules = validationRules;
+	}
+	
+	/**
+	 * Returns the current configuration, loaded from the files of the classpath and the configuration directory
+	 * @return
+	 */
+	public static TicConfiguration getDefault() {
+		return current.get();
+	}
+	
+	/**
+	 * Loads the configuration again and publishes it. If it can not be loaded the current one is kept
+	 * @return If the configuration was reloaded
+	 */
+	public static boolean reload() {
+		try {
+			publish(load());
+			return true;
+		}
+		catch(Exception e) {
+			logger.error("Error reloading the configuration: " + e.toString());
+			return false;
+		}
+	}
+	
+	/**
+	 * Builds the derived tables of a configuration and makes it the current one
+	 * @param configuration
+	 */
+	public static void publish(TicConfiguration configuration) {
+		for(Entry<Class<?>, Function<TicConfiguration, ?>> entry : derivedFactories.entrySet()) {
+			configuration.derived.computeIfAbsent(entry.getKey(), k -> entry.getValue().apply(configuration));
+		}
+		current.set(configuration);
+	}
+	
+	/**
+	 * Registers a table built from the configuration, so it is built with each new snapshot before publishing it
+	 * @param type
+	 * @param factory
+	 */
+	public static <T> void addDerived(Class<T> type, Function<TicConfiguration, T> factory) {
+		derivedFactories.put(type, factory);
+	}
+	
+	/**
+	 * Returns a table built from this configuration, building it the first time it is requested
+	 * @param type
+	 * @param factory
+	 * @return
+	 */
+	public <T> T getDerived(Class<T> type, Function<TicConfiguration, T> factory) {
+		Object value = derived.get(type);
+		if(value == null) {
+			value = derived.computeIfAbsent(type, k -> factory.apply(this));
+		}
+		return type.cast(value);
+	}
+	
+	/**
+	 * Loads the configuration from the files of the classpath, overwritten by the files of CONFIG_DIR if it is set.
+	 * System environment variables overwrite the properties, allowed values and errors with the same name
+	 * @return
+	 */
+	public static TicConfiguration load() {
+		return load(System.getenv());
+	}
+	
+	/**
+	 * Loads the configuration as {@link #load()}, taking the environment variables from a map
+	 * @param environment
+	 * @return
+	 */
+	static TicConfiguration load(Map<String, String> environment) {
+		Properties config = loadProperties(CONFIG_PROPERTIES_FILE);
+		Properties validation = loadProperties(VALIDATION_PROPERTIES_FILE);
+		Properties errors = loadProperties(ERRORS_PROPERTIES_FILE);
+		overrideFromEnvironment(config, environment);
+		
+		Path directory = getDirectory(config.getProperty("CONFIG_DIR"));
+		if(directory != null) {
+			loadProperties(config, directory.resolve(CONFIG_PROPERTIES_FILE));
+			loadProperties(validation, directory.resolve(VALIDATION_PROPERTIES_FILE));
+			loadProperties(errors, directory.resolve(ERRORS_PROPERTIES_FILE));
+			overrideFromEnvironment(config, environment);
+		}
+		overrideFromEnvironment(validation, environment);
+		overrideFromEnvironment(errors, environment);
+		return of(config, validation, errors);
+	}
+	
+	/**
+	 * Creates a configuration from properties with the same format as the files of the classpath
+	 * @param config Properties of config.properties
+	 * @param validation Allowed values, as validation.properties
+	 * @param errors Error messages, as errors.properties
+	 * @return
+	 */
+	public static TicConfiguration of(Properties config, Properties validation, Properties errors) {
+		return new TicConfiguration(toMap(config), toMap(validation), toMap(errors), ValidationRules.of(validation));
+	}
+	
+	/**
+	 * Returns a copy of the configuration with a property changed
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public TicConfiguration with(String key, String value) {
+		Map<String, String> changed = new HashMap<String, String>(properties);
+		changed.put(key, value);
+		return new TicConfiguration(changed, validation, errors, validationRules);
+	}
+	
+	public String get(String key) {
+		return properties.get(key);
+	}
+	
+	public Integer getAsInteger(String key) {
+		return properties.get(key) != null ? Integer.parseInt(properties.get(key)) : null;
+	}
+	
+	/**
+	 * Returns the values of a property separated by commas, empty if it is not set
+	 * @param key
+	 * @return
+	 */
+	public List<String> getList(String key) {
+		String value = properties.get(key);
+		return value != null && !value.isEmpty() ? Arrays.asList(value.split(",")) : Collections.<String>emptyList();
+	}
+	
+	/**
+	 * Returns the directory with the files that overwrite the ones of the classpath, null if it is not set
+	 * @return
+	 */
+	public Path getDirectory() {
+		return getDirectory(properties.get("CONFIG_DIR"));
+	}
+	
+	public Map<String, String> getProperties() {
+		return properties;
+	}
+	
+	public Map<String, String> getValidations() {
+		return validation;
+	}
+	
+	public Map<String, String> getErrors() {
+		return errors;
+	}
+	
+	/**
+	 * Returns the allowed values of a field as they are written in validation.properties
+	 * @param key
+	 * @return
+	 */
+	public String getValidation(String key) {
+		return validation.get(key);
+	}
+	
+	public ValidationRules getValidationRules() {
+		return validationRules;
+	}
+	
+	/**
+	 * Returns an error message replacing its arguments ({0}, {1}...)
+	 * @param key
+	 * @param args
+	 * @return
+	 */
+	public String getError(String key, String... args) {
+		String message = errors.get(key);
+		if(message == null) {
+			return null;
+		}
+		for(int i = 0; i < args.length; i++) {
+			message = message.replace("{" + i + "}", args[i]);
+		}
+		return message;
+	}
+	
+	static Properties loadProperties(String name) {
+		Properties properties = new Properties();
+		try(InputStream in = TicConfiguration.class.getClassLoader().getResourceAsStream(name)) {
+			if(in != null) {
+				properties.load(in);
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		return properties;
+	}
+	
+	private static void loadProperties(Properties properties, Path file) {
+		if(Files.isRegularFile(file)) {
+			try(InputStream in = Files.newInputStream(file)) {
+				properties.load(in);
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Only the variables of known properties are read, instead of copying the whole environment
+	 */
+	private static void overrideFromEnvironment(Properties properties, Map<String, String> environment) {
+		for(String key : properties.stringPropertyNames()) {
+			String value = environment.get(key);
+			if(value != null) {
+				properties.setProperty(key, value);
+			}
+		}
+	}
+	
+	private static Path getDirectory(String name) {
+		return name != null && !name.trim().isEmpty() ? Paths.get(name.trim()) : null;
+	}
+	
+	private static Map<String, String> toMap(Properties properties) {
+		Map<String, String> map = new HashMap<String, String>();
+		if(properties != null) {
+			for(String key : properties.stringPropertyNames()) {
+				map.put(key, properties.getProperty(key));
+			}
+		}
+		return map;
+	}
+}
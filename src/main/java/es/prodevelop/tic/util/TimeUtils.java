@@ -40,6 +40,21 @@ public class TimeUtils {
 	
 	final static Logger logger = Logger.getLogger(TimeUtils.class);
 	
+	/**
+	 * Returned when a timestamp can not be parsed
+	 */
+	public static final long INVALID_EPOCH = Long.MIN_VALUE;
+	
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	// Epoch nanos are stored in a long, from 1677-09-21 to 2262-04-11
+	private static final long MIN_SECONDS = Long.MIN_VALUE / NANOS_PER_SECOND + 1;
+	private static final long MAX_SECONDS = Long.MAX_VALUE / NANOS_PER_SECOND - 1;
+	private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+	
+	// Messages repeat the same timestamps in many samples, the last ones parsed are kept by hash
+	private static final int CACHE_SIZE = 256;
+	private static final ParsedTimestamp[] cache = new ParsedTimestamp[CACHE_SIZE];
+	
 	public static String getCurrentTimestamp() {
 		return getTimestampFromEpoch(System.currentTimeMillis() / 1000);
 	}
@@ -52,28 +67,171 @@ public class TimeUtils {
 		return Instant.ofEpochSecond(epoch).toString();
 	}
 
+	/**
+	 * Returns the epoch in seconds of a timestamp, or 0 if it can not be parsed
+	 * @param timestamp
+	 * @return
+	 */
 	public static long getEpochFromTimestamp(String timestamp) {	
-		long epoch = 0;
-		
+		long nanos = getEpochNanosFromTimestamp(timestamp);
+		return nanos != INVALID_EPOCH ? Math.floorDiv(nanos, NANOS_PER_SECOND) : 0;
+	}
+	
+	/**
+	 * Returns the epoch in nanoseconds of an ISO-8601 timestamp with offset (2022-01-01T10:00:00.123Z, 2022-01-01T11:00:00+01:00), 
+	 * or INVALID_EPOCH if it can not be parsed
+	 * @param timestamp
+	 * @return
+	 */
+	public static long getEpochNanosFromTimestamp(String timestamp) {
 		if (timestamp == null || timestamp.isEmpty()) {
-			return 0;
+			return INVALID_EPOCH;
 		}
-
-		timestamp = timestamp.replace(".000000000", "");
-		if(timestamp.contains("AM")) {
-			timestamp.replace("AM", "");
-		} 
-		else if (timestamp.contains("PM")) {
-			timestamp.replace("PM", "");
+		
+		int slot = timestamp.hashCode() & (CACHE_SIZE - 1);
+		ParsedTimestamp cached = cache[slot];
+		if(cached != null && cached.timestamp.equals(timestamp)) {
+			return cached.nanos;
+		}
+		
+		long nanos = parse(timestamp);
+		if(nanos == INVALID_EPOCH) {
+			// Formats not handled by the parser (leap seconds, years out of range...)
+			try {
+				Instant instant = Instant.parse(timestamp);
+				if(instant.getEpochSecond() >= MIN_SECONDS && instant.getEpochSecond() <= MAX_SECONDS) {
+					nanos = instant.getEpochSecond() * NANOS_PER_SECOND + instant.getNano();
+				}
+			}
+			catch (Exception e) {
+				if(logger.isDebugEnabled()) {
+					logger.debug("Error on getEpochNanosFromTimestamp: " + timestamp + ". " + e.toString());
+				}
+			}
+		}
+		cache[slot] = new ParsedTimestamp(timestamp, nanos);
+		return nanos;
+	}
+	
+	/**
+	 * Parses yyyy-MM-ddTHH:mm[:ss[.fraction]] followed by Z or an offset (+HH, +HH:mm) without allocating objects
+	 */
+	private static long parse(String s) {
+		int length = s.length();
+		if(length < 17 || s.charAt(4) != '-' || s.charAt(7) != '-' || (s.charAt(10) != 'T' && s.charAt(10) != 't') || s.charAt(13) != ':') {
+			return INVALID_EPOCH;
+		}
+		int year = digits(s, 0, 4);
+		int month = digits(s, 5, 2);
+		int day = digits(s, 8, 2);
+		int hour = digits(s, 11, 2);
+		int minute = digits(s, 14, 2);
+		if(year < 0 || month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] || hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+			return INVALID_EPOCH;
+		}
+		if(month == 2 && day == 29 && !isLeapYear(year)) {
+			return INVALID_EPOCH;
+		}
+		
+		int i = 16;
+		int second = 0;
+		long fraction = 0;
+		if(i < length && s.charAt(i) == ':') {
+			second = digits(s, i + 1, 2);
+			if(second < 0 || second > 59) {
+				return INVALID_EPOCH;
+			}
+			i += 3;
+			if(i < length && s.charAt(i) == '.') {
+				i++;
+				int start = i;
+				while(i < length && i - start < 9 && isDigit(s.charAt(i))) {
+					fraction = fraction * 10 + (s.charAt(i) - '0');
+					i++;
+				}
+				for(int n = i - start; n < 9; n++) {
+					fraction *= 10;
+				}
+			}
+		}
+		
+		// Offset
+		if(i >= length) {
+			return INVALID_EPOCH;
+		}
+		int offsetSeconds;
+		char c = s.charAt(i);
+		if(c == 'Z' || c == 'z') {
+			if(i + 1 != length) {
+				return INVALID_EPOCH;
+			}
+			offsetSeconds = 0;
+		}
+		else if(c == '+' || c == '-') {
+			int remaining = length - i - 1;
+			int offsetHours = digits(s, i + 1, 2);
+			int offsetMinutes;
+			if(remaining == 2) {
+				offsetMinutes = 0;
+			}
+			else if(remaining == 5 && s.charAt(i + 3) == ':') {
+				offsetMinutes = digits(s, i + 4, 2);
+			}
+			else {
+				return INVALID_EPOCH;
+			}
+			if(offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+				return INVALID_EPOCH;
+			}
+			offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (c == '-' ? -1 : 1);
+		}
+		else {
+			return INVALID_EPOCH;
 		}
 		
-		try {
-			epoch = Instant.parse(timestamp).getEpochSecond();
+		long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second - offsetSeconds;
+		if(seconds < MIN_SECONDS || seconds > MAX_SECONDS) {
+			return INVALID_EPOCH;
+		}
+		return seconds * NANOS_PER_SECOND + fraction;
+	}
+	
+	/**
+	 * Returns the positive number of a fixed number of digits, or -1 if there is any other character
+	 */
+	private static int digits(String s, int start, int count) {
+		if(start + count > s.length()) {
+			return -1;
 		}
-		catch (Exception e) {
-			logger.debug("Error on getEpochOnSecondsFromTimestamp: " + timestamp + ". " + e.toString());
+		int value = 0;
+		for(int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if(!isDigit(c)) {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
 		}
-		return epoch;
+		return value;
+	}
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+	
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+	
+	/**
+	 * Days since 1970-01-01 of a date of the proleptic Gregorian calendar
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
 	}
 		
 	public static String addSeconds(String timestamp, long seconds) {	
@@ -113,8 +271,23 @@ public class TimeUtils {
 		return (getEpochFromTimestamp(timestamp1) > getEpochFromTimestamp(timestamp2));
 	}
 	
+	/**
+	 * Returns if a timestamp is between two others (both included), comparing their epochs in nanoseconds
+	 * @param start
+	 * @param end
+	 * @param timestamp
+	 * @return
+	 */
 	public static boolean between(String start, String end, String timestamp) {
-		return afterOrEqual(timestamp, start) && beforeOrEqual(timestamp, end);
+		long epoch = getEpochNanosFromTimestamp(timestamp);
+		if(epoch == INVALID_EPOCH) {
+			return false;
+		}
+		return between(getEpochNanosFromTimestamp(start), getEpochNanosFromTimestamp(end), epoch);
+	}
+	
+	public static boolean between(long start, long end, long epoch) {
+		return start != INVALID_EPOCH && end != INVALID_EPOCH && epoch >= start && epoch <= end;
 	}
 	
 	public static long getSeconds(String timestamp1, String timestamp2) {
@@ -123,4 +296,17 @@ public class TimeUtils {
 		
 		return Math.abs(epoch2 - epoch1);
 	}
+	
+	/**
+	 * A timestamp with its epoch in nanoseconds
+	 */
+	private static class ParsedTimestamp {
+		final String timestamp;
+		final long nanos;
+		
+		ParsedTimestamp(String timestamp, long nanos) {
+			this.timestamp = timestamp;
+			this.nanos = nanos;
+		}
+	}
 }
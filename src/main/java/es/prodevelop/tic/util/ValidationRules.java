@@ -0,0 +1,110 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Allowed values of the fields with a closed list of values (i.e. pom, pomt), compiled once from validation.properties into hash sets.
+ * <br/>Rules are immutable and checking a value does not allocate.
+ */
+public final class ValidationRules {
+	
+	private final Map<String, Set<String>> allowedValues;
+	
+	private ValidationRules(Map<String, Set<String>> allowedValues) {
+		this.allowedValues = allowedValues;
+	}
+	
+	/**
+	 * Returns the rules of validation.properties of the current configuration
+	 * @return
+	 */
+	public static ValidationRules getDefault() {
+		return TicConfiguration.getDefault().getValidationRules();
+	}
+	
+	/**
+	 * Compiles the rules of a properties file in the classpath. Each property is a field and its allowed values separated by |
+	 * @param name
+	 * @return
+	 */
+	public static ValidationRules load(String name) {
+		return of(TicConfiguration.loadProperties(name));
+	}
+	
+	/**
+	 * Compiles the rules of properties with the same format as validation.properties
+	 * @param properties
+	 * @return
+	 */
+	public static ValidationRules of(Properties properties) {
+		Map<String, Set<String>> allowedValues = new HashMap<String, Set<String>>();
+		for(String field : properties.stringPropertyNames()) {
+			Set<String> values = new LinkedHashSet<String>();
+			for(String value : properties.getProperty(field).split("[|]")) {
+				if(value.length() > 0) {
+					values.add(value);
+				}
+			}
+			allowedValues.put(field, Collections.unmodifiableSet(values));
+		}
+		return new ValidationRules(Collections.unmodifiableMap(allowedValues));
+	}
+	
+	/**
+	 * Returns the allowed values of the field in the order of the file, null if any value is allowed
+	 * @param field
+	 * @return
+	 */
+	public Set<String> getAllowedValues(String field) {
+		return allowedValues.get(field);
+	}
+	
+	public boolean isAllowed(String field, JsonPrimitive value) {
+		// Only string values are constrained
+		return !value.isString() || isAllowed(field, value.getAsString());
+	}
+	
+	public boolean isAllowed(String field, String value) {
+		Set<String> values = allowedValues.get(field);
+		return values == null || values.contains(value);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.benchmark;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import es.prodevelop.tic.util.Configuration;
+import es.prodevelop.tic.util.ValidationRules;
+
+/**
+ * Generates synthetic TIC4.0 messages following the structure of schema.json.
+ * <br/>Messages contain a number of CHEs, and for each one the first properties of the schema up to the given width and depth.
+ * Observations (objects with timestamp) are generated for each timestamp and arrays of objects get as many elements as the width.
+ * The same parameters always generate the same message. Used by the benchmarks and as the corpus of the tests.
+ */
+public class MessageGenerator {
+	
+	private static final long START = Instant.parse("2022-01-01T00:00:00Z").toEpochMilli();
+	
+	private final JsonObject schema;
+	private final int ches;
+	private final int timestamps;
+	private final int width;
+	private final int depth;
+	private final String idField = Configuration.get("FIELD_ID");
+	
+	/**
+	 * @param ches Number of CHEs in the message
+	 * @param timestamps Number of observations (different timestamps) in each array of observations
+	 * @param width Number of properties of each object and of elements of each array of objects
+	 * @param depth Number of levels of objects below each CHE
+	 */
+	public MessageGenerator(int ches, int timestamps, int width, int depth) {
+		this("schema.json", ches, timestamps, width, depth);
+	}
+	
+	public MessageGenerator(String schemaName, int ches, int timestamps, int width, int depth) {
+		this.schema = loadSchema(schemaName);
+		this.ches = ches;
+		this.timestamps = timestamps;
+		this.width = width;
+		this.depth = depth;
+	}
+	
+	public JsonObject generate() {
+		Random random = new Random(ches * 31 + timestamps * 17 + width * 7 + depth);
+		
+		JsonObject message = new JsonObject();
+		JsonObject msg = new JsonObject();
+		msg.addProperty("id", "benchmark");
+		msg.addProperty("sender", "benchmark");
+		msg.addProperty("version", "1.0");
+		msg.addProperty("creationtimestamp", timestamp(0));
+		message.add("msg", msg);
+		
+		JsonObject cheSchema = schema.getAsJsonObject("properties").getAsJsonObject("che").getAsJsonObject("items");
+		JsonArray che = new JsonArray();
+		for(int i = 0; i < ches; i++) {
+			JsonObject o = generateObject(cheSchema, 0, random);
+			o.addProperty(idField, "che" + i);
+			o.addProperty("id", "CHE" + i);
+			che.add(o);
+		}
+		message.add("che", che);
+		return message;
+	}
+	
+	/**
+	 * Returns the path to the first array of objects that is not an array of observations below che, to split messages by
+	 * @return
+	 */
+	public String getSplitPath() {
+		JsonObject cheSchema = schema.getAsJsonObject("properties").getAsJsonObject("che").getAsJsonObject("items");
+		for(Entry<String, JsonElement> property : cheSchema.getAsJsonObject("properties").entrySet()) {
+			JsonObject propertySchema = property.getValue().getAsJsonObject();
+			if(isArrayOfObjects(propertySchema) && !isObservation(propertySchema.getAsJsonObject("items"))) {
+				return "che." + property.getKey();
+			}
+		}
+		return "che";
+	}
+	
+	private JsonObject generateObject(JsonObject objectSchema, int level, Random random) {
+		JsonObject o = new JsonObject();
+		if(!objectSchema.has("properties")) {
+			return o;
+		}
+		int properties = 0;
+		for(Entry<String, JsonElement> property : objectSchema.getAsJsonObject("properties").entrySet()) {
+			if(properties >= width) {
+				break;
+			}
+			JsonObject propertySchema = property.getValue().getAsJsonObject();
+			String type = getType(propertySchema);
+			
+			if("object".equals(type) && level < depth) {
+				JsonObject child = generateObject(propertySchema, level + 1, random);
+				if(child.size() > 0) {
+					o.add(property.getKey(), child);
+					properties++;
+				}
+			}
+			else if(isArrayOfObjects(propertySchema) && level < depth) {
+				JsonObject itemSchema = propertySchema.getAsJsonObject("items");
+				JsonArray array = new JsonArray();
+				if(isObservation(itemSchema)) {
+					for(int t = 0; t < timestamps; t++) {
+						array.add(generateObservation(itemSchema, t, random));
+					}
+				}
+				else {
+					for(int i = 0; i < width; i++) {
+						JsonObject element = generateObject(itemSchema, level + 1, random);
+						element.addProperty(idField, property.getKey() + i);
+						array.add(element);
+					}
+				}
+				o.add(property.getKey(), array);
+				properties++;
+			}
+			else if("string".equals(type) || "number".equals(type) || "boolean".equals(type)) {
+				o.add(property.getKey(), generateValue(property.getKey(), type, random));
+				properties++;
+			}
+		}
+		return o;
+	}
+	
+	private JsonObject generateObservation(JsonObject itemSchema, int t, Random random) {
+		JsonObject o = new JsonObject();
+		for(Entry<String, JsonElement> property : itemSchema.getAsJsonObject("properties").entrySet()) {
+			String key = property.getKey();
+			if(key.equals("timestamp")) {
+				o.addProperty(key, timestamp(t));
+			}
+			else if(key.equals("pomt") || key.equals("unit") || key.equals("value")) {
+				o.add(key, generateValue(key, getType(property.getValue().getAsJsonObject()), random));
+			}
+		}
+		return o;
+	}
+	
+	private JsonElement generateValue(String key, String type, Random random) {
+		JsonObject holder = new JsonObject();
+		if("number".equals(type)) {
+			holder.addProperty(key, Math.round(random.nextDouble() * 100000) / 100.0);
+		}
+		else if("boolean".equals(type)) {
+			holder.addProperty(key, random.nextBoolean());
+		}
+		else {
+			// Key fields with a enum value take the first allowed value
+			Set<String> allowed = ValidationRules.getDefault().getAllowedValues(key);
+			if(allowed != null) {
+				holder.addProperty(key, allowed.iterator().next());
+			}
+			else if(key.equals("unit")) {
+				holder.addProperty(key, "kg");
+			}
+			else {
+				holder.addProperty(key, key + random.nextInt(10));
+			}
+		}
+		return holder.get(key);
+	}
+	
+	private static String timestamp(int t) {
+		return Instant.ofEpochMilli(START + t * 1000L).toString();
+	}
+	
+	private static boolean isObservation(JsonObject objectSchema) {
+		return objectSchema.has("properties") && objectSchema.getAsJsonObject("properties").has("timestamp");
+	}
+	
+	private static boolean isArrayOfObjects(JsonObject propertySchema) {
+		return "array".equals(getType(propertySchema)) 
+				&& propertySchema.has("items") 
+				&& "object".equals(getType(propertySchema.getAsJsonObject("items")));
+	}
+	
+	private static String getType(JsonObject propertySchema) {
+		JsonElement type = propertySchema.get("type");
+		return type != null && type.isJsonPrimitive() ? type.getAsString() : null;
+	}
+	
+	private static JsonObject loadSchema(String name) {
+		try(InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(name)) {
+			return JsonParser.parseReader(new InputStreamReader(is, StandardCharsets.UTF_8)).getAsJsonObject();
+		}
+		catch(Exception e) {
+			throw new IllegalArgumentException("Schema not found: " + name, e);
+		}
+	}
+}
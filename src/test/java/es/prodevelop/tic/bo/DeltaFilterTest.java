@@ -0,0 +1,121 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.util.JsonUtils;
+
+class DeltaFilterTest {
+	
+	@Test
+	void firstMessageIsAKeyframe() {
+		DeltaFilter filter = new DeltaFilter(10, 0);
+		JsonObject delta = filter.filter("c0", flat("m0", 1, 10, "2022-01-01T10:00:00Z"), "arrayid");
+		assertEquals(true, delta.get("msg.keyframe").getAsBoolean());
+		assertEquals(10, delta.get("che.@c0.speed.value").getAsInt());
+	}
+	
+	@Test
+	void sameValuesInAnotherMessageAreSkipped() {
+		DeltaFilter filter = new DeltaFilter(10, 0);
+		filter.filter("c0", flat("m0", 1, 10, "2022-01-01T10:00:00Z"), "arrayid");
+		// Other message id, sample and timestamp, but the same value
+		assertNull(filter.filter("c0", flat("m1", 2, 10, "2022-01-01T10:00:01Z"), "arrayid"));
+	}
+	
+	@Test
+	void changedValueIsEmittedWithHeaderAndIds() {
+		DeltaFilter filter = new DeltaFilter(10, 0);
+		filter.filter("c0", flat("m0", 1, 10, "2022-01-01T10:00:00Z"), "arrayid");
+		JsonObject delta = filter.filter("c0", flat("m1", 2, 11, "2022-01-01T10:00:01Z"), "arrayid");
+		
+		JsonObject expected = new JsonObject();
+		expected.addProperty("msg.id", "m1");
+		expected.addProperty("msg.sample", 2);
+		expected.addProperty("che.@c0.arrayid", "c0");
+		expected.addProperty("che.@c0.speed.timestamp", "2022-01-01T10:00:01Z");
+		expected.addProperty("che.@c0.speed.value", 11);
+		assertEquals(expected, delta);
+	}
+	
+	@Test
+	void keyframeIsRepeated() {
+		DeltaFilter filter = new DeltaFilter(10, 2);
+		filter.filter("c0", flat("m0", 1, 10, "2022-01-01T10:00:00Z"), "arrayid");
+		assertNull(filter.filter("c0", flat("m1", 1, 10, "2022-01-01T10:00:01Z"), "arrayid"));
+		JsonObject delta = filter.filter("c0", flat("m2", 1, 10, "2022-01-01T10:00:02Z"), "arrayid");
+		assertEquals(true, delta.get("msg.keyframe").getAsBoolean());
+	}
+	
+	@Test
+	void evictedEntityStartsWithAKeyframe() {
+		DeltaFilter filter = new DeltaFilter(1, 0);
+		filter.filter("c0", flat("m0", 1, 10, "2022-01-01T10:00:00Z"), "arrayid");
+		filter.filter("c1", flat("m0", 1, 10, "2022-01-01T10:00:00Z"), "arrayid");
+		JsonObject delta = filter.filter("c0", flat("m1", 1, 10, "2022-01-01T10:00:01Z"), "arrayid");
+		assertEquals(true, delta.get("msg.keyframe").getAsBoolean());
+	}
+	
+	@Test
+	void samplesAreFilteredInTimeOrder() throws Exception {
+		// The newest sample comes first in the document, the oldest one is the keyframe
+		String message = "{\"msg\":{\"sender\":\"delta-test\",\"id\":\"m0\"},\"che\":[{\"arrayid\":\"c0\",\"speed\":["
+				+ "{\"timestamp\":\"2022-01-01T10:00:02Z\",\"value\":2},"
+				+ "{\"timestamp\":\"2022-01-01T10:00:01Z\",\"value\":1},"
+				+ "{\"timestamp\":\"2022-01-01T10:00:00Z\",\"value\":1}]}]}";
+		List<JsonObject> messages = TicBO.getMessages(JsonUtils.jsonToJsonObject(message), "arrayid", "che", 0, null, true);
+		assertEquals(2, messages.size());
+		assertEquals("2022-01-01T10:00:00Z", messages.get(0).get("che.@.speed.@.timestamp").getAsString());
+		assertEquals(true, messages.get(0).get("msg.keyframe").getAsBoolean());
+		assertEquals("2022-01-01T10:00:02Z", messages.get(1).get("che.@.speed.@.timestamp").getAsString());
+		assertEquals(2, messages.get(1).get("che.@.speed.@.value").getAsInt());
+	}
+	
+	private static JsonObject flat(String id, int sample, int value, String timestamp) {
+		JsonObject flat = new JsonObject();
+		flat.addProperty("msg.id", id);
+		flat.addProperty("msg.sample", sample);
+		flat.addProperty("che.@c0.arrayid", "c0");
+		flat.addProperty("che.@c0.speed.timestamp", timestamp);
+		flat.addProperty("che.@c0.speed.value", value);
+		return flat;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+class DownsamplerTest {
+	
+	private static final String KEY = "che.@c0.speed.actual.#unit#m/s.value";
+	
+	@Test
+	void samplesAreGroupedInBuckets() {
+		Downsampler downsampler = new Downsampler(1000, Downsampler.Aggregation.LAST, Collections.emptyMap());
+		downsampler.add("2022-01-01T10:00:00Z", "", flat(1, 1));
+		downsampler.add("2022-01-01T10:00:00.500Z", "", flat(2, 2));
+		downsampler.add("2022-01-01T10:00:01.200Z", "", flat(3, 3));
+		
+		List<JsonObject> messages = downsampler.getMessages();
+		assertEquals(2, messages.size());
+		assertEquals(2, messages.get(0).get(KEY).getAsInt());
+		assertEquals(3, messages.get(1).get(KEY).getAsInt());
+	}
+	
+	@Test
+	void bucketsAreSortedByTimeThenByEntity() {
+		Downsampler downsampler = new Downsampler(1000, Downsampler.Aggregation.LAST, Collections.emptyMap());
+		downsampler.add("2022-01-01T10:00:01Z", "c1", flat(1, 1));
+		downsampler.add("2022-01-01T10:00:00Z", "c1", flat(2, 2));
+		downsampler.add("2022-01-01T10:00:00Z", "c0", flat(3, 3));
+		// Timestamps that can not be parsed go last, in their own bucket
+		downsampler.add("yesterday", "c0", flat(4, 4));
+		
+		List<Entry<String, JsonObject>> messages = downsampler.getMessagesByEntity();
+		assertEquals(4, messages.size());
+		int[] values = {2, 3, 1, 4};
+		String[] entities = {"c1", "c0", "c1", "c0"};
+		for(int i = 0; i < values.length; i++) {
+			assertEquals(entities[i], messages.get(i).getKey());
+			assertEquals(values[i], messages.get(i).getValue().get(KEY).getAsInt());
+		}
+	}
+	
+	@Test
+	void numbersAreAggregated() {
+		for(Downsampler.Aggregation aggregation : Downsampler.Aggregation.values()) {
+			Downsampler downsampler = new Downsampler(1000, aggregation, Collections.emptyMap());
+			downsampler.add("2022-01-01T10:00:00.100Z", "", flat(1, 4));
+			downsampler.add("2022-01-01T10:00:00.200Z", "", flat(2, 1));
+			downsampler.add("2022-01-01T10:00:00.300Z", "", flat(3, 7));
+			double expected = aggregation == Downsampler.Aggregation.MIN ? 1 : aggregation == Downsampler.Aggregation.MAX ? 7 : aggregation == Downsampler.Aggregation.MEAN ? 4 : 7;
+			assertEquals(expected, downsampler.getMessages().get(0).get(KEY).getAsDouble(), aggregation.toString());
+		}
+	}
+	
+	@Test
+	void fieldAggregationsOverrideTheDefault() {
+		Map<String, Downsampler.Aggregation> fields = Collections.singletonMap("value", Downsampler.Aggregation.MAX);
+		Downsampler downsampler = new Downsampler(1000, Downsampler.Aggregation.MIN, fields);
+		JsonObject first = flat(1, 5);
+		first.addProperty("che.@c0.weight.actual.#unit#kg.other", 5);
+		JsonObject second = flat(2, 3);
+		second.addProperty("che.@c0.weight.actual.#unit#kg.other", 3);
+		downsampler.add("2022-01-01T10:00:00.100Z", "", first);
+		downsampler.add("2022-01-01T10:00:00.200Z", "", second);
+		
+		JsonObject message = downsampler.getMessages().get(0);
+		assertEquals(5, message.get(KEY).getAsInt());
+		assertEquals(3, message.get("che.@c0.weight.actual.#unit#kg.other").getAsInt());
+	}
+	
+	@Test
+	void valuesThatAreNotAllNumbersKeepTheLast() {
+		for(Downsampler.Aggregation aggregation : Downsampler.Aggregation.values()) {
+			Downsampler downsampler = new Downsampler(1000, aggregation, Collections.emptyMap());
+			downsampler.add("2022-01-01T10:00:00.100Z", "", flat(1, 4));
+			JsonObject text = flat(2, 0);
+			text.addProperty(KEY, "high");
+			downsampler.add("2022-01-01T10:00:00.200Z", "", text);
+			downsampler.add("2022-01-01T10:00:00.300Z", "", flat(3, 9));
+			assertEquals(9, downsampler.getMessages().get(0).get(KEY).getAsInt(), aggregation.toString());
+		}
+	}
+	
+	@Test
+	void lastIsTheLatestSampleInTime() {
+		Downsampler downsampler = new Downsampler(1000, Downsampler.Aggregation.LAST, Collections.emptyMap());
+		downsampler.add("2022-01-01T10:00:00.300Z", "", flat(1, 3));
+		downsampler.add("2022-01-01T10:00:00.100Z", "", flat(2, 1));
+		assertEquals(3, downsampler.getMessages().get(0).get(KEY).getAsInt());
+	}
+	
+	@Test
+	void samplesAreNumberedAgain() {
+		Downsampler downsampler = new Downsampler(1000, Downsampler.Aggregation.LAST, Collections.emptyMap());
+		downsampler.add("2022-01-01T10:00:00Z", "", flat(1, 1));
+		downsampler.add("2022-01-01T10:00:00.500Z", "", flat(2, 2));
+		downsampler.add("2022-01-01T10:00:01Z", "", flat(3, 3));
+		downsampler.add("2022-01-01T10:00:02Z", "", flat(4, 4));
+		
+		List<JsonObject> messages = downsampler.getMessages();
+		for(int i = 0; i < messages.size(); i++) {
+			assertEquals(i + 1, messages.get(i).get("msg.sample").getAsInt());
+		}
+	}
+	
+	@Test
+	void bucketMustBePositive() {
+		assertThrows(IllegalArgumentException.class, () -> new Downsampler(0, Downsampler.Aggregation.LAST, Collections.emptyMap()));
+		assertThrows(IllegalArgumentException.class, () -> new Downsampler(-1000, Downsampler.Aggregation.LAST, Collections.emptyMap()));
+	}
+	
+	private static JsonObject flat(int sample, int value) {
+		JsonObject flat = new JsonObject();
+		flat.addProperty("msg.id", "m0");
+		flat.addProperty("msg.sample", sample);
+		flat.addProperty(KEY, value);
+		return flat;
+	}
+}
@@ -0,0 +1,292 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.benchmark.MessageGenerator;
+import es.prodevelop.tic.util.Configuration;
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.ValidationUtils;
+
+class MessageBuilderTest {
+	
+	private static final String MESSAGE = "{\"msg\":{\"sender\":\"s\",\"id\":\"m0\"},\"che\":[{\"arrayid\":\"che0\",\"id\":\"C0\",\"hoist\":["
+			+ "{\"arrayid\":\"h0\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":1},{\"timestamp\":\"2022-01-01T10:00:01Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":2}]},"
+			+ "{\"arrayid\":\"h1\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":3}]}]}]}";
+	
+	@Test
+	void buildRestoresTheSample() throws Exception {
+		List<JsonObject> flat = TicBO.getMessages(JsonUtils.jsonToJsonObject(MESSAGE), null, null);
+		assertEquals(2, flat.size());
+		
+		JsonObject expected = JsonUtils.jsonToJsonObject("{\"msg\":{\"sender\":\"s\",\"id\":\"m0\",\"sample\":1},\"che\":[{\"arrayid\":\"che0\",\"id\":\"C0\",\"hoist\":["
+				+ "{\"arrayid\":\"h0\",\"position\":[{\"pomt\":\"actual\",\"unit\":\"m\",\"timestamp\":\"2022-01-01T10:00:00Z\",\"value\":1}]},"
+				+ "{\"arrayid\":\"h1\",\"position\":[{\"pomt\":\"actual\",\"unit\":\"m\",\"timestamp\":\"2022-01-01T10:00:00Z\",\"value\":3}]}]}]}");
+		assertEquals(expected, TicBO.buildMessage(flat.get(0), "arrayid"));
+	}
+	
+	@Test
+	void buildKeepsArrayElementsInOrder() throws Exception {
+		JsonObject flat = new JsonObject();
+		flat.addProperty("msg.id", "m0");
+		for(int i = 0; i < 500; i++) {
+			flat.addProperty("che.@che" + i + ".arrayid", "che" + i);
+			flat.addProperty("che.@che" + i + ".speed.actual.#unit#m/s.value", i);
+		}
+		JsonArray che = TicBO.buildMessage(flat, "arrayid").getAsJsonArray("che");
+		assertEquals(500, che.size());
+		for(int i = 0; i < 500; i++) {
+			JsonObject element = che.get(i).getAsJsonObject();
+			assertEquals("che" + i, element.get("arrayid").getAsString());
+			JsonObject speed = element.getAsJsonArray("speed").get(0).getAsJsonObject();
+			assertEquals("actual", speed.get("pomt").getAsString());
+			assertEquals("m/s", speed.get("unit").getAsString());
+			assertEquals(i, speed.get("value").getAsInt());
+		}
+	}
+	
+	@Test
+	void buildMessagesReadsTheMessagesArray() throws Exception {
+		JsonArray messages = new JsonArray();
+		TicBO.getMessages(JsonUtils.jsonToJsonObject(MESSAGE), null, null).forEach(messages::add);
+		JsonObject wrapper = new JsonObject();
+		wrapper.add("messages", messages);
+		
+		List<JsonObject> built = TicBO.buildMessages(wrapper, "arrayid");
+		assertEquals(2, built.size());
+		assertEquals(2, built.get(1).getAsJsonObject("msg").get("sample").getAsInt());
+	}
+	
+	@Test
+	void buildMatchesBaselineOnGeneratedMessages() throws Exception {
+		Random random = new Random(42);
+		int[][] parameters = { {2, 2, 3, 2}, {3, 3, 4, 3}, {1, 4, 2, 4} };
+		for(int[] p : parameters) {
+			MessageGenerator generator = new MessageGenerator(p[0], p[1], p[2], p[3]);
+			for(String path : new String[] { null, "che", generator.getSplitPath() }) {
+				List<JsonObject> flat = TicBO.getMessages(generator.generate(), null, path);
+				// All the samples in a single flat message, so the arrays have several elements with the same key fields
+				JsonObject all = new JsonObject();
+				for(JsonObject message : flat) {
+					assertBuildMatchesBaseline(message);
+					assertBuildMatchesBaseline(shuffle(message, random));
+					message.entrySet().forEach(e -> all.add(e.getKey(), e.getValue()));
+				}
+				assertBuildMatchesBaseline(all);
+				assertBuildMatchesBaseline(shuffle(all, random));
+			}
+		}
+	}
+	
+	@Test
+	void buildMatchesBaselineWithRepeatedIds() throws Exception {
+		JsonObject flat = new JsonObject();
+		// An element without id matches any id, so the earlier match is kept as grandparent
+		flat.addProperty("che.@.hoist.@.position.actual.#unit#m.value", 1);
+		flat.addProperty("che.@che0.arrayid", "che0");
+		flat.addProperty("che.@che0.hoist.@h0.arrayid", "h0");
+		flat.addProperty("che.@che1.hoist.@h0.position.actual.#unit#m.value", 2);
+		flat.addProperty("che.@che1.arrayid", "che1");
+		flat.addProperty("che.@.hoist.@h1.speed.actual.#unit#m/s.value", 3);
+		assertBuildMatchesBaseline(flat);
+		
+		// Both che match the empty id, the array of key fields is added to the first one, the grandparent
+		flat = new JsonObject();
+		flat.addProperty("che.@c0.arrayid", "c0");
+		flat.addProperty("che.@c1.speed", 1);
+		flat.addProperty("che.@.#unit#kg.value", 5);
+		assertBuildMatchesBaseline(flat);
+		
+		// Both speeds match the key fields, the array below the value is added to the first one
+		flat = new JsonObject();
+		flat.addProperty("che.@c0.speed.@s0.pomt", "actual");
+		flat.addProperty("che.@c0.speed.@s0.arrayid", "s0");
+		flat.addProperty("che.@c0.speed.@s1.pomt", "actual");
+		flat.addProperty("che.@c0.speed.actual.value", 1);
+		flat.addProperty("che.@c0.speed.actual.other.@z.q", 2);
+		assertBuildMatchesBaseline(flat);
+	}
+	
+	@Test
+	void buildMatchesBaselineWithIdsThatAreNotStrings() throws Exception {
+		JsonObject flat = new JsonObject();
+		flat.addProperty("che.@che0.id", "C0");
+		flat.add("che.@che0.arrayid", JsonUtils.jsonToJsonObject("{\"a\":1}"));
+		flat.addProperty("che.@che1.arrayid", "che1");
+		flat.addProperty("che.@che1.id", "C1");
+		assertBuildMatchesBaseline(flat);
+		
+		flat = new JsonObject();
+		flat.addProperty("che.@che0.speed.actual.#unit#m/s.value", 1);
+		flat.add("che.@che0.speed.actual.#unit#m/s.unit", new JsonArray());
+		flat.addProperty("che.@che0.speed.actual.#unit#m/s.timestamp", "2022-01-01T10:00:00Z");
+		assertBuildMatchesBaseline(flat);
+	}
+	
+	private static void assertBuildMatchesBaseline(JsonObject flat) throws Exception {
+		assertEquals(baselineBuild(flat, "arrayid"), TicBO.buildMessage(flat, "arrayid"), flat.toString());
+	}
+	
+	private static JsonObject shuffle(JsonObject flat, Random random) {
+		List<String> keys = new ArrayList<String>(flat.keySet());
+		Collections.shuffle(keys, random);
+		JsonObject shuffled = new JsonObject();
+		for(String key : keys) {
+			shuffled.add(key, flat.get(key));
+		}
+		return shuffled;
+	}
+	
+	/**
+	 * The build before MessageBuilder: each key is placed scanning the arrays it goes through. 
+	 * Errors stop the build and the tree built so far is returned
+	 */
+	private static JsonObject baselineBuild(JsonObject object, String idField) {
+		HashMap<String, String> pathToFieldMap = new HashMap<String, String>();
+		for(String field : Configuration.get("FIELD_TO_PATH").split(",")) {
+			String valuesInline = ValidationUtils.get(field);
+			if(valuesInline != null) {
+				for(String value : valuesInline.split("[|]")) {
+					if(value.length() > 0) {
+						pathToFieldMap.put(value, field);
+					}
+				}
+			}
+		}
+		String markerId = Configuration.get("MARKER_ID");
+		String markerKeyField = Configuration.get("MARKER_KEYFIELD");
+		
+		JsonObject treeObject = new JsonObject();
+		try {
+			for(Entry<String, JsonElement> entry : object.entrySet()) {
+				String[] path = entry.getKey().split("[.]");
+				JsonElement parent = treeObject;
+				JsonElement grandparent = treeObject;
+				HashMap<String, String> keyFieldMap = new HashMap<String, String>();
+				for(int i = 0; i < path.length; i++) {
+					if(path[i].startsWith(markerId)) {
+						if(parent.isJsonObject()) {
+							parent = new JsonArray();
+							grandparent.getAsJsonObject().add(path[i-1], parent);
+						}
+						boolean found = false;
+						for(JsonElement e : parent.getAsJsonArray()) {
+							if(path[i].length() == 1
+									|| path[i].substring(1).equals(JsonUtils.getAsString(e.getAsJsonObject(), idField))
+									|| !JsonUtils.has(e.getAsJsonObject(), idField)) {
+								grandparent = parent;
+								parent = e.getAsJsonObject();
+								found = true;
+							}
+						}
+						if(!found) {
+							JsonObject o = new JsonObject();
+							grandparent = parent;
+							parent.getAsJsonArray().add(o);
+							parent = o;
+						}
+					}
+					else if(pathToFieldMap.get(path[i]) != null) {
+						if(parent.isJsonObject()) {
+							parent = new JsonArray();
+							grandparent.getAsJsonObject().add(path[i-1], parent);
+						}
+						keyFieldMap.put(pathToFieldMap.get(path[i]), path[i]);
+					}
+					else if(path[i].startsWith(markerKeyField)) {
+						if(parent.isJsonObject()) {
+							parent = new JsonArray();
+							grandparent.getAsJsonObject().add(path[i-1], parent);
+						}
+						String[] keyAndValue = path[i].split(markerKeyField);
+						keyFieldMap.put(keyAndValue[1], keyAndValue.length > 2 ? keyAndValue[2] : null);
+					}
+					else if(keyFieldMap.size() > 0) {
+						boolean found = false;
+						for(JsonElement e : parent.getAsJsonArray()) {
+							boolean match = true;
+							for(String k : keyFieldMap.keySet()) {
+								if(keyFieldMap.get(k) == null && JsonUtils.getAsString(e.getAsJsonObject(), k) != null
+										|| keyFieldMap.get(k) != null && !keyFieldMap.get(k).equals(JsonUtils.getAsString(e.getAsJsonObject(), k))) {
+									match = false;
+									break;
+								}
+							}
+							if(match) {
+								found = true;
+								e.getAsJsonObject().add(path[i], entry.getValue());
+								grandparent = parent;
+								parent = e.getAsJsonObject();
+							}
+						}
+						if(!found) {
+							JsonObject o = new JsonObject();
+							for(String k : keyFieldMap.keySet()) {
+								o.addProperty(k, keyFieldMap.get(k));
+							}
+							o.add(path[i], entry.getValue());
+							grandparent = parent;
+							parent.getAsJsonArray().add(o);
+							parent = o;
+						}
+					}
+					else {
+						if(parent.getAsJsonObject().get(path[i]) == null) {
+							parent.getAsJsonObject().add(path[i], i < path.length - 1 ? new JsonObject() : entry.getValue());
+						}
+						grandparent = parent; 
+						parent = parent.getAsJsonObject().get(path[i]);
+					}
+				}
+			}
+		}
+		catch(Exception e) {
+			// The baseline logs the error and returns the partial tree
+		}
+		return treeObject;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.util.JsonUtils;
+
+class MessageMergerTest {
+	
+	private static final String MESSAGE = "{\"msg\":{\"sender\":\"s\",\"id\":\"m0\"},\"che\":[{\"arrayid\":\"che0\",\"id\":\"C0\",\"hoist\":["
+			+ "{\"arrayid\":\"h0\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":1},{\"timestamp\":\"2022-01-01T10:00:01Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":2}]},"
+			+ "{\"arrayid\":\"h1\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":3}]}]}]}";
+	
+	@Test
+	void samplesAreMergedIntoTheSourceMessage() throws Exception {
+		JsonObject source = JsonUtils.jsonToJsonObject(MESSAGE);
+		List<JsonObject> merged = merge(TicBO.getMessages(source.deepCopy(), null, null));
+		
+		assertEquals(1, merged.size());
+		// The merged message has several samples, so it has no sample number
+		assertEquals(source, merged.get(0));
+	}
+	
+	@Test
+	void samplesAreSortedByTime() throws Exception {
+		List<JsonObject> flat = TicBO.getMessages(JsonUtils.jsonToJsonObject(MESSAGE), null, null);
+		List<JsonObject> reversed = new ArrayList<JsonObject>();
+		reversed.add(flat.get(1));
+		reversed.add(flat.get(0));
+		
+		List<JsonObject> merged = merge(reversed);
+		assertEquals(JsonUtils.jsonToJsonObject(MESSAGE), merged.get(0));
+	}
+	
+	@Test
+	void singleSampleKeepsItsNumber() throws Exception {
+		JsonObject flat = new JsonObject();
+		flat.addProperty("msg.id", "m0");
+		flat.addProperty("msg.sample", 1);
+		flat.addProperty("che.@che0.arrayid", "che0");
+		flat.addProperty("che.@che0.speed.actual.#unit#m/s.value", 5);
+		
+		List<JsonObject> merged = merge(Collections.singletonList(flat));
+		assertEquals(1, merged.size());
+		assertEquals(1, merged.get(0).getAsJsonObject("msg").get("sample").getAsInt());
+	}
+	
+	@Test
+	void sourceMessagesAndEntitiesAreKeptApart() throws Exception {
+		List<JsonObject> flat = new ArrayList<JsonObject>();
+		for(String id : new String[] {"m0", "m1"}) {
+			JsonObject message = JsonUtils.jsonToJsonObject("{\"msg\":{\"sender\":\"s\",\"id\":\"" + id + "\"},\"che\":["
+					+ "{\"arrayid\":\"che0\",\"speed\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m/s\",\"value\":1},{\"timestamp\":\"2022-01-01T10:00:01Z\",\"pomt\":\"actual\",\"unit\":\"m/s\",\"value\":2}]},"
+					+ "{\"arrayid\":\"che1\",\"speed\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m/s\",\"value\":3}]}]}");
+			flat.addAll(TicBO.getMessages(message, null, "che"));
+		}
+		
+		List<JsonObject> merged = merge(flat);
+		// One message for each source message and che
+		assertEquals(4, merged.size());
+		String[] ids = {"m0", "m0", "m1", "m1"};
+		String[] entities = {"che0", "che1", "che0", "che1"};
+		int[] samples = {2, 1, 2, 1};
+		for(int i = 0; i < merged.size(); i++) {
+			JsonObject message = merged.get(i);
+			assertEquals(ids[i], message.getAsJsonObject("msg").get("id").getAsString());
+			JsonArray che = message.getAsJsonArray("che");
+			assertEquals(1, che.size());
+			assertEquals(entities[i], che.get(0).getAsJsonObject().get("arrayid").getAsString());
+			assertEquals(samples[i], che.get(0).getAsJsonObject().getAsJsonArray("speed").size());
+		}
+	}
+	
+	@Test
+	void keyFieldsThatAreNotValuesAreCompared() throws Exception {
+		List<JsonObject> flat = new ArrayList<JsonObject>();
+		for(int i = 0; i < 3; i++) {
+			JsonObject message = new JsonObject();
+			message.addProperty("msg.id", "m0");
+			message.addProperty("che.@c0.arrayid", "c0");
+			message.addProperty("che.@c0.speed.@s0.arrayid", "s0");
+			message.addProperty("che.@c0.speed.@s0.timestamp", "2022-01-01T10:00:00Z");
+			// The unit is an object, the same in the first two messages
+			message.addProperty("che.@c0.speed.@s0.unit.name", i < 2 ? "m/s" : "km/h");
+			message.addProperty("che.@c0.speed.@s0.value" + i, i);
+			flat.add(message);
+		}
+		
+		List<JsonObject> merged = merge(flat);
+		assertEquals(1, merged.size());
+		JsonArray speed = merged.get(0).getAsJsonArray("che").get(0).getAsJsonObject().getAsJsonArray("speed");
+		assertEquals(2, speed.size());
+		assertEquals(0, speed.get(0).getAsJsonObject().get("value0").getAsInt());
+		assertEquals(1, speed.get(0).getAsJsonObject().get("value1").getAsInt());
+		assertEquals(2, speed.get(1).getAsJsonObject().get("value2").getAsInt());
+	}
+	
+	private static List<JsonObject> merge(List<JsonObject> flat) throws Exception {
+		JsonArray array = new JsonArray();
+		for(JsonObject message : flat) {
+			array.add(message);
+		}
+		List<JsonObject> merged = new ArrayList<JsonObject>();
+		TicBO.mergeMessages(array, "arrayid", merged::add);
+		return merged;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The store is global to the process, so each test uses its own senders
+ */
+class StateStoreTest {
+	
+	@Test
+	void sameEntityOfDifferentSendersIsKeptApart() {
+		StateStore.update("apart1", "c0", "2022-01-01T10:00:00Z", flat("m0", "che.@c0.speed.value", 10), "@");
+		StateStore.update("apart2", "c0", "2022-01-01T10:00:00Z", flat("m1", "che.@c0.speed.value", 20), "@");
+		
+		assertEquals(10, value(StateStore.get("apart1", "c0", null), "che.@c0.speed.value"));
+		assertEquals(20, value(StateStore.get("apart2", "c0", null), "che.@c0.speed.value"));
+		assertNull(StateStore.get(null, "c0", null));
+	}
+	
+	@Test
+	void headerKeysAreNotKept() {
+		StateStore.update("header", "c0", "2022-01-01T10:00:00Z", flat("m0", "che.@c0.speed.value", 10), "@");
+		
+		JsonObject values = StateStore.get("header", "c0", null).getAsJsonObject("values");
+		assertEquals(1, values.size());
+		assertFalse(values.has("msg.id"));
+	}
+	
+	@Test
+	void olderSamplesDoNotReplaceNewerValues() {
+		StateStore.update("order", "c0", "2022-01-01T10:00:01Z", flat("m1", "che.@c0.speed.value", 11), "@");
+		StateStore.update("order", "c0", "2022-01-01T10:00:00Z", flat("m0", "che.@c0.speed.value", 10), "@");
+		
+		JsonObject state = StateStore.get("order", "c0", null);
+		assertEquals(11, value(state, "che.@c0.speed.value"));
+		assertEquals("2022-01-01T10:00:01Z", state.getAsJsonObject("values").getAsJsonObject("che.@c0.speed.value").get("timestamp").getAsString());
+	}
+	
+	@Test
+	void entitiesAreTakenFromTheKeysWithoutSplitPath() {
+		JsonObject flat = flat("m0", "che.@c0.speed.value", 10);
+		flat.addProperty("che.@c1.speed.value", 20);
+		StateStore.update("keys", null, "2022-01-01T10:00:00Z", flat, "@");
+		
+		assertEquals(10, value(StateStore.get("keys", "c0", null), "che.@c0.speed.value"));
+		assertEquals(20, value(StateStore.get("keys", "c1", null), "che.@c1.speed.value"));
+	}
+	
+	@Test
+	void valuesAreFilteredByPrefix() {
+		JsonObject flat = flat("m0", "che.@c0.speed.value", 10);
+		flat.addProperty("che.@c0.weight.value", 1.5);
+		StateStore.update("prefix", "c0", "2022-01-01T10:00:00Z", flat, "@");
+		
+		JsonObject values = StateStore.get("prefix", "c0", "che.@c0.weight").getAsJsonObject("values");
+		assertEquals(1, values.size());
+		assertEquals(1.5, values.getAsJsonObject("che.@c0.weight.value").get("value").getAsDouble());
+	}
+	
+	@Test
+	void prefixOnlyReturnsItsKeysWhateverTheOrderTheyArrived() {
+		JsonObject flat = flat("m0", "che.@c0.wind.value", 3);
+		flat.addProperty("che.@c0.speed.value", 1);
+		flat.addProperty("che.@c0.xweight.value", 4);
+		flat.addProperty("che.@c0.weight.value", 2);
+		flat.addProperty("che.@c0.a.value", 0);
+		StateStore.update("sorted", "c0", "2022-01-01T10:00:00Z", flat, "@");
+		
+		JsonObject values = StateStore.get("sorted", "c0", "che.@c0.w").getAsJsonObject("values");
+		assertEquals(2, values.size());
+		assertEquals(2, values.getAsJsonObject("che.@c0.weight.value").get("value").getAsInt());
+		assertEquals(3, values.getAsJsonObject("che.@c0.wind.value").get("value").getAsInt());
+		assertEquals(0, StateStore.get("sorted", "c0", "che.@c0.z").getAsJsonObject("values").size());
+		assertEquals(5, StateStore.get("sorted", "c0", null).getAsJsonObject("values").size());
+	}
+	
+	@Test
+	void integersTooBigForDoublesAreKeptExactly() {
+		JsonObject flat = new JsonObject();
+		flat.add("che.@c0.count.value", JsonParser.parseString("9007199254740993"));
+		flat.add("che.@c0.total.value", JsonParser.parseString("-9007199254740992"));
+		flat.add("che.@c0.small.value", JsonParser.parseString("9007199254740991"));
+		StateStore.update("big", "c0", "2022-01-01T10:00:00Z", flat, "@");
+		
+		JsonObject values = StateStore.get("big", "c0", null).getAsJsonObject("values");
+		assertEquals("9007199254740993", values.getAsJsonObject("che.@c0.count.value").get("value").toString());
+		assertEquals("-9007199254740992", values.getAsJsonObject("che.@c0.total.value").get("value").toString());
+		assertEquals("9007199254740991", values.getAsJsonObject("che.@c0.small.value").get("value").toString());
+	}
+	
+	@Test
+	void newKeysOfAFullEntityAreDropped() {
+		// STATE_MAX_KEYS of config.properties
+		int maxKeys = 10000;
+		JsonObject flat = new JsonObject();
+		for(int i = 0; i <= maxKeys; i++) {
+			flat.addProperty("che.@c0.k" + i + ".value", i);
+		}
+		StateStore.update("full", "c0", "2022-01-01T10:00:00Z", flat, "@");
+		assertEquals(maxKeys, StateStore.get("full", "c0", null).getAsJsonObject("values").size());
+		
+		// The kept keys are still updated
+		StateStore.update("full", "c0", "2022-01-01T10:00:01Z", flat("m1", "che.@c0.k0.value", -1), "@");
+		assertEquals(-1, value(StateStore.get("full", "c0", null), "che.@c0.k0.value"));
+		assertEquals(maxKeys, StateStore.get("full", "c0", null).getAsJsonObject("values").size());
+	}
+	
+	private static JsonObject flat(String id, String key, int value) {
+		JsonObject flat = new JsonObject();
+		flat.addProperty("msg.id", id);
+		flat.addProperty(key, value);
+		return flat;
+	}
+	
+	private static int value(JsonObject state, String key) {
+		return state.getAsJsonObject("values").getAsJsonObject(key).get("value").getAsInt();
+	}
+}
@@ -0,0 +1,103 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.bo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import es.prodevelop.tic.util.JsonUtils;
+import es.prodevelop.tic.util.Result;
+
+/**
+ * The errors expected are the ones reported by the validation before arrays were checked in one pass
+ */
+class ValidationTest {
+	
+	@Test
+	void duplicatedTimestampIsReportedOnce() {
+		assertEquals(Arrays.asList("speed: There is more than one element with same timestamp and key fields"), 
+				validate("{\"speed\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"value\":1},"
+						+ "{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"value\":2},"
+						+ "{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"value\":3}]}"));
+	}
+	
+	@Test
+	void sameTimestampWithOtherKeyFieldsIsAllowed() {
+		assertEquals(Arrays.asList(), 
+				validate("{\"speed\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"value\":1},"
+						+ "{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"scheduled\",\"value\":2}]}"));
+	}
+	
+	@Test
+	void missingTimestampIsReportedForRepeatedElements() {
+		assertEquals(Arrays.asList("speed[0]: There is not timestamp", "speed[1]: There is not timestamp"), 
+				validate("{\"speed\":[{\"pomt\":\"actual\",\"value\":1},{\"pomt\":\"actual\",\"value\":2}]}"));
+		assertEquals(Arrays.asList("speed[1]: There is not timestamp"), 
+				validate("{\"speed\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"value\":1},{\"pomt\":\"actual\",\"value\":2}]}"));
+		// Without repetition of the key fields the timestamp is not required
+		assertEquals(Arrays.asList(), 
+				validate("{\"speed\":[{\"pomt\":\"actual\",\"value\":1},{\"pomt\":\"scheduled\",\"value\":2}]}"));
+	}
+	
+	@Test
+	void equalElementsWithoutTimestampAreReportedForEachCopy() {
+		assertEquals(Arrays.asList("speed[0]: There is not timestamp", "speed[0]: There is not timestamp", 
+				"speed[1]: There is not timestamp", "speed[1]: There is not timestamp"), 
+				validate("{\"speed\":[{\"pomt\":\"actual\",\"value\":1},{\"pomt\":\"actual\",\"value\":1},{\"pomt\":\"scheduled\",\"value\":1}]}"));
+	}
+	
+	@Test
+	void nestedArraysAreReportedWithTheirPath() {
+		assertEquals(Arrays.asList("che[0].speed: There is more than one element with same timestamp and key fields"), 
+				validate("{\"che\":[{\"arrayid\":\"c0\",\"speed\":[{\"timestamp\":\"t\",\"value\":1},{\"timestamp\":\"t\",\"value\":2}]},{\"arrayid\":\"c1\"}]}"));
+	}
+	
+	@Test
+	void notAllowedValueIsReported() {
+		assertEquals(Arrays.asList("speed[0].pomt: The value bogus is not allowed"), 
+				validate("{\"speed\":[{\"pomt\":\"bogus\",\"timestamp\":\"t\",\"value\":1}]}"));
+	}
+	
+	private static List<String> validate(String json) {
+		Result result = new Result();
+		TicBO.validate(result, JsonUtils.jsonToJsonObject(json), "");
+		List<String> errors = new ArrayList<String>();
+		result.getErrors().forEach(e -> errors.add(e.getAsString()));
+		return errors;
+	}
+}
@@ -0,0 +1,190 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import es.prodevelop.tic.benchmark.MessageGenerator;
+
+class MappedFileTest {
+	
+	// Region sizes that split the messages at every position, and one that maps the whole file
+	private static final int[] REGION_SIZES = { 1, 2, 3, 5, 7, 16, 61, MappedFile.REGION_SIZE };
+	
+	private static final String LINES = "{\"a\":\"x,]}[{\",\"b\":[1,2,{\"c\":\"\\\"]\"}]}\n"
+			+ "\n"
+			+ "   \n"
+			+ "{\"s\":\"escaped \\\\\",\"t\":\"\\\\\\\"\",\"u\":\"ünïcode €\"}\r\n"
+			+ "[{\"in\":\"array\"},2]\n"
+			+ "{\"last\":\"without new line\"}";
+	
+	// Starts with a byte order mark
+	private static final String ARRAYS = "\uFEFF [ {\"a\":\"x,]}[{\",\"b\":[1,2,{\"c\":\"\\\"]\"}]},\n"
+			+ "{\"s\":\"escaped \\\\\",\"t\":\"\\\\\\\"\"} , [1,[2,3]] ,\n 3, \"str,]\", {\"u\":\"ünïcode €\"}\n]\n"
+			+ "{\"top\":{\"level\":\"]\"}}\n"
+			+ "[ ]\n"
+			+ "[{\"z\":1}]\n\n";
+	
+	@TempDir
+	Path directory;
+	
+	@Test
+	void linesMatchGson() throws Exception {
+		Path file = write("messages.ndjson", LINES);
+		for(int regionSize : REGION_SIZES) {
+			assertEquals(parseWithGson(LINES, false), read(file, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void linesAreNumberedWithBlankLines() throws Exception {
+		Path file = write("messages.ndjson", LINES);
+		for(int regionSize : REGION_SIZES) {
+			List<String> sources = new ArrayList<String>();
+			MappedFile.read(file, regionSize, message -> sources.add(message.source.substring(message.source.lastIndexOf(':'))));
+			assertEquals(Arrays.asList(":1", ":4", ":5", ":6"), sources, "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void trailingNewLinesAreIgnored() throws Exception {
+		String content = "{\"a\":1}\n{\"b\":2}\n\n\n";
+		Path file = write("messages.jsonl", content);
+		for(int regionSize : REGION_SIZES) {
+			assertEquals(parseWithGson(content, false), read(file, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void arrayElementsMatchGson() throws Exception {
+		Path file = write("messages.json", ARRAYS);
+		for(int regionSize : REGION_SIZES) {
+			assertEquals(parseWithGson(ARRAYS, true), read(file, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void generatedMessagesMatchGson() throws Exception {
+		JsonArray array = new JsonArray();
+		StringBuilder lines = new StringBuilder();
+		for(int i = 1; i <= 20; i++) {
+			JsonObject message = new MessageGenerator(i % 3 + 1, i % 4 + 1, 3, 3).generate();
+			array.add(message);
+			lines.append(message).append('\n');
+		}
+		Path arrayFile = write("generated.json", array.toString());
+		Path linesFile = write("generated.ndjson", lines.toString());
+		for(int regionSize : new int[] { 97, 4096, MappedFile.REGION_SIZE }) {
+			assertEquals(parseWithGson(array.toString(), true), read(arrayFile, regionSize), "region size " + regionSize);
+			assertEquals(parseWithGson(lines.toString(), false), read(linesFile, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void documentsMatchGson() throws Exception {
+		String content = "{\"a\":\"x,]}[{\",\"b\":[1,2]}\n{\"c\":\"\\\"\"}\n";
+		Path file = write("messages.txt", content);
+		for(int regionSize : REGION_SIZES) {
+			assertEquals(parseWithGson(content, true), read(file, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void truncatedArrayFails() throws Exception {
+		Path file = write("messages.json", "[{\"a\":1},{\"b\":\"]\"");
+		for(int regionSize : REGION_SIZES) {
+			assertThrows(IOException.class, () -> read(file, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	@Test
+	void textOutOfTheArrayFails() throws Exception {
+		Path file = write("messages.json", "[{\"a\":1}] x");
+		for(int regionSize : REGION_SIZES) {
+			assertThrows(IOException.class, () -> read(file, regionSize), "region size " + regionSize);
+		}
+	}
+	
+	private Path write(String name, String content) throws IOException {
+		Path file = directory.resolve(name);
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+	
+	private static List<JsonElement> read(Path file, int regionSize) throws Exception {
+		List<JsonElement> messages = new ArrayList<JsonElement>();
+		MappedFile.read(file, regionSize, message -> messages.add(message.parse()));
+		return messages;
+	}
+	
+	/**
+	 * The json documents of the content one after the other
+	 * @param arrays If the elements of the arrays are the messages, instead of the arrays themselves
+	 */
+	private static List<JsonElement> parseWithGson(String content, boolean arrays) throws IOException {
+		List<JsonElement> messages = new ArrayList<JsonElement>();
+		try(JsonReader reader = new JsonReader(new StringReader(content))) {
+			reader.setLenient(true);
+			while(reader.peek() != JsonToken.END_DOCUMENT) {
+				JsonElement document = JsonParser.parseReader(reader);
+				if(arrays && document.isJsonArray()) {
+					document.getAsJsonArray().forEach(messages::add);
+				}
+				else {
+					messages.add(document);
+				}
+			}
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RollingWriterTest {
+	
+	@TempDir
+	Path directory;
+	
+	@Test
+	void filesAreRolledByTheirSizeInBytes() throws Exception {
+		// 10 bytes in UTF-8, 7 characters
+		String lines = "{\"€\":1}\n";
+		try(RollingWriter writer = new RollingWriter(directory, "flatten", 25)) {
+			for(int i = 0; i < 6; i++) {
+				writer.write(lines);
+			}
+			assertEquals(60, writer.getBytes());
+			assertEquals(2, writer.getFiles());
+		}
+		assertEquals(30, Files.size(directory.resolve("flatten-00001.ndjson")));
+		assertEquals(30, Files.size(directory.resolve("flatten-00002.ndjson")));
+	}
+	
+	@Test
+	void singleFileWithoutMaximum() throws Exception {
+		try(RollingWriter writer = new RollingWriter(directory, "build", 0)) {
+			for(int i = 0; i < 100; i++) {
+				writer.write("{}\n");
+			}
+		}
+		assertEquals(300, Files.size(directory.resolve("build-00001.ndjson")));
+		assertEquals(false, Files.exists(directory.resolve("build-00002.ndjson")));
+	}
+	
+	@Test
+	void outputOfAPreviousRunIsNotOverwritten() throws Exception {
+		Files.write(directory.resolve("flatten-00003.ndjson"), "{}\n".getBytes(StandardCharsets.UTF_8));
+		assertThrows(FileAlreadyExistsException.class, () -> new RollingWriter(directory, "flatten", 0));
+		// Other commands can write to the same directory
+		try(RollingWriter writer = new RollingWriter(directory, "build", 0)) {
+			writer.write("{}\n");
+		}
+	}
+}
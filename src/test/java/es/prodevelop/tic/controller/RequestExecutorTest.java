@@ -0,0 +1,243 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import es.prodevelop.tic.controller.RequestExecutor.Pool;
+
+class RequestExecutorTest {
+	
+	@Test
+	void fullQueueIsRejectedWithRetryAfter() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1, 1, 100, 0, 5);
+		CountDownLatch release = new CountDownLatch(1);
+		// One request running and one queued fill the heavy pool
+		Call running = submit(executor, Pool.HEAVY, 0, () -> release.await());
+		Call queued = submit(executor, Pool.HEAVY, 0, () -> {});
+		Call rejected = submit(executor, Pool.HEAVY, 0, () -> {});
+		
+		assertEquals(503, rejected.response.getStatus());
+		assertEquals("5", rejected.response.getHeader("Retry-After"));
+		assertTrue(rejected.response.getContentAsString().contains("\"result\":\"ko\""));
+		assertEquals(1, rejected.request.completions.get());
+		
+		release.countDown();
+		running.awaitCompletion();
+		queued.awaitCompletion();
+		assertEquals(200, queued.response.getStatus());
+	}
+	
+	@Test
+	void smallLightRequestsRunOnTheLightPool() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1, 1, 100, 0, 1);
+		assertEquals("tic-light-", getThreadPrefix(executor, Pool.LIGHT, 100));
+		// Big or of unknown size
+		assertEquals("tic-heavy-", getThreadPrefix(executor, Pool.LIGHT, 101));
+		assertEquals("tic-heavy-", getThreadPrefix(executor, Pool.LIGHT, -1));
+		assertEquals("tic-heavy-", getThreadPrefix(executor, Pool.HEAVY, 10));
+	}
+	
+	@Test
+	void lightRequestsAreNotDelayedByHeavyOnes() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1, 1, 100, 0, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		Call heavy = submit(executor, Pool.HEAVY, 0, () -> release.await());
+		Call light = submit(executor, Pool.LIGHT, 10, () -> {});
+		light.awaitCompletion();
+		assertEquals(0, heavy.request.completions.get());
+		release.countDown();
+		heavy.awaitCompletion();
+	}
+	
+	@Test
+	void queuedRequestIsCancelledOnTimeout() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1, 1, 100, 1000, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		Call running = submit(executor, Pool.HEAVY, 0, () -> release.await());
+		AtomicBoolean ran = new AtomicBoolean();
+		Call queued = submit(executor, Pool.HEAVY, 0, () -> ran.set(true));
+		
+		queued.timeout();
+		assertEquals(503, queued.response.getStatus());
+		assertEquals(1, queued.request.completions.get());
+		
+		release.countDown();
+		running.awaitCompletion();
+		// The pool has one thread, so this request runs after the cancelled one would have
+		submit(executor, Pool.HEAVY, 0, () -> {}).awaitCompletion();
+		assertFalse(ran.get());
+		assertEquals(1, queued.request.completions.get());
+	}
+	
+	@Test
+	void runningRequestCanNotWriteAfterTimeout() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1, 1, 100, 1000, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch timedOut = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(1);
+		AtomicReference<IOException> error = new AtomicReference<IOException>();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		Call running = submit(executor, Pool.HEAVY, 0, response, () -> {
+			try {
+				OutputStream output = RequestExecutor.getOutputStream(response);
+				started.countDown();
+				timedOut.await();
+				output.write("late".getBytes(StandardCharsets.UTF_8));
+			}
+			catch(IOException e) {
+				error.set(e);
+			}
+			finally {
+				finished.countDown();
+			}
+		});
+		
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		running.timeout();
+		timedOut.countDown();
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		// The worker completes the request after the task, give it the time to do it if it would
+		Thread.sleep(100);
+		
+		assertEquals(503, response.getStatus());
+		assertFalse(response.getContentAsString().contains("late"));
+		assertTrue(error.get() != null);
+		assertEquals(1, running.request.completions.get());
+	}
+	
+	private static String getThreadPrefix(RequestExecutor executor, Pool pool, int length) throws Exception {
+		AtomicReference<String> thread = new AtomicReference<String>();
+		submit(executor, pool, length, () -> thread.set(Thread.currentThread().getName())).awaitCompletion();
+		return thread.get().replaceAll("[0-9]+$", "");
+	}
+	
+	private static Call submit(RequestExecutor executor, Pool pool, int length, RequestExecutor.Task task) throws Exception {
+		return submit(executor, pool, length, new MockHttpServletResponse(), task);
+	}
+	
+	/**
+	 * Submits a request with a body of the length, -1 for a request without length
+	 */
+	private static Call submit(RequestExecutor executor, Pool pool, int length, MockHttpServletResponse response, RequestExecutor.Task task) throws Exception {
+		CountingRequest request = new CountingRequest();
+		if(length >= 0) {
+			request.setContent(new byte[length]);
+		}
+		executor.submit("test", pool, request, response, task);
+		return new Call(request, response);
+	}
+	
+	/**
+	 * A request that counts the completions of its async context, as the container only completes it once
+	 */
+	private static class CountingRequest extends MockHttpServletRequest {
+		final AtomicInteger completions = new AtomicInteger();
+		final CountDownLatch completed = new CountDownLatch(1);
+		
+		CountingRequest() {
+			super("POST", "/test");
+			setAsyncSupported(true);
+		}
+		
+		@Override
+		public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+			AsyncContext context = super.startAsync(request, response);
+			context.addListener(new AsyncListener() {
+				@Override
+				public void onComplete(AsyncEvent event) {
+					completions.incrementAndGet();
+					completed.countDown();
+				}
+				
+				@Override
+				public void onTimeout(AsyncEvent event) {
+				}
+				
+				@Override
+				public void onError(AsyncEvent event) {
+				}
+				
+				@Override
+				public void onStartAsync(AsyncEvent event) {
+				}
+			});
+			return context;
+		}
+	}
+	
+	private static class Call {
+		final CountingRequest request;
+		final MockHttpServletResponse response;
+		
+		Call(CountingRequest request, MockHttpServletResponse response) {
+			this.request = request;
+			this.response = response;
+		}
+		
+		/**
+		 * Notifies the timeout to the listeners, as the container does
+		 */
+		void timeout() throws IOException {
+			for(AsyncListener listener : ((MockAsyncContext) request.getAsyncContext()).getListeners()) {
+				listener.onTimeout(new AsyncEvent(request.getAsyncContext(), request, response));
+			}
+		}
+		
+		void awaitCompletion() throws InterruptedException {
+			assertTrue(request.completed.await(10, TimeUnit.SECONDS));
+		}
+	}
+}
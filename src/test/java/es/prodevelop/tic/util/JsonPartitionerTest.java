@@ -0,0 +1,136 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+class JsonPartitionerTest {
+	
+	private static final String MESSAGE = "{\"msg\":{\"sender\":\"s\",\"id\":\"m0\",\"nothing\":null},"
+			+ "\"che\":[{\"arrayid\":\"che0\",\"id\":\"C0\",\"tags\":[],"
+			+ "\"hoist\":[{\"arrayid\":\"h0\",\"timestamp\":\"2022-01-01T10:00:01Z\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:01Z\",\"value\":1}]},"
+			+ "{\"arrayid\":\"h1\",\"timestamp\":\"2022-01-01T10:00:00Z\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"value\":2}]}],"
+			+ "\"trolley\":{\"position\":[{\"timestamp\":\"2022-01-01T10:00:02Z\",\"value\":3},{\"timestamp\":\"2022-01-01T10:00:00Z\",\"value\":4}]},"
+			+ "\"location\":{\"coordinates\":[1.5,2.5]}},"
+			+ "{\"arrayid\":\"che1\",\"id\":\"C1\",\"speed\":[{\"timestamp\":\"2022-01-01T10:00:01Z\",\"value\":5,\"unit\":null}]}]}";
+	
+	@Test
+	void splitByTimestampMatchesBaseline() {
+		JsonObject object = JsonUtils.jsonToJsonObject(MESSAGE);
+		assertSameMessages(baselineSplit(object, "timestamp"), JsonPartitioner.split(object, "timestamp"));
+	}
+	
+	@Test
+	void splitByArrayIdMatchesBaseline() {
+		JsonObject object = JsonUtils.jsonToJsonObject(MESSAGE);
+		assertSameMessages(baselineSplit(object, "arrayid"), JsonPartitioner.split(object, "arrayid"));
+	}
+	
+	@Test
+	void splitKeepsDocumentOrder() {
+		Map<String, JsonObject> messages = JsonPartitioner.splitByInstant(JsonUtils.jsonToJsonObject(MESSAGE), "timestamp");
+		assertEquals(Arrays.asList("2022-01-01T10:00:01Z", "2022-01-01T10:00:00Z", "2022-01-01T10:00:02Z"), new ArrayList<String>(messages.keySet()));
+	}
+	
+	@Test
+	void splitByInstantGroupsOffsets() {
+		String message = "{\"che\":[{\"arrayid\":\"che0\",\"speed\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"value\":1},"
+				+ "{\"timestamp\":\"2022-01-01T11:00:00.000+01:00\",\"value\":2},{\"timestamp\":\"2022-01-01T10:00:01Z\",\"value\":3}]}]}";
+		Map<String, JsonObject> messages = JsonPartitioner.splitByInstant(JsonUtils.jsonToJsonObject(message), "timestamp");
+		assertEquals(Arrays.asList("2022-01-01T10:00:00Z", "2022-01-01T10:00:01Z"), new ArrayList<String>(messages.keySet()));
+		assertEquals(2, messages.get("2022-01-01T10:00:00Z").getAsJsonArray("che").get(0).getAsJsonObject().getAsJsonArray("speed").size());
+	}
+	
+	@Test
+	void splitDoesNotModifySource() {
+		JsonObject object = JsonUtils.jsonToJsonObject(MESSAGE);
+		JsonPartitioner.split(object, "timestamp");
+		assertEquals(JsonUtils.jsonToJsonObject(MESSAGE), object);
+	}
+	
+	/**
+	 * The split before JsonPartitioner: a copy of the whole message for each value, deleting the other elements.
+	 * JsonUtils.removeEmptyValues stops at the first property it removes, so the cleanup is done here on the whole tree
+	 */
+	private static List<JsonObject> baselineSplit(JsonObject object, String key) {
+		List<JsonObject> messages = new ArrayList<JsonObject>();
+		for(String value : JsonUtils.getValuesForKey(object, key)) {
+			JsonObject message = object.deepCopy();
+			JsonUtils.deleteIfExistAndNotEqual(message, key, value);
+			removeEmptyValues(message);
+			messages.add(message);
+		}
+		return messages;
+	}
+	
+	private static void removeEmptyValues(JsonObject node) {
+		Iterator<Map.Entry<String, JsonElement>> it = node.entrySet().iterator();
+		while(it.hasNext()) {
+			JsonElement value = it.next().getValue();
+			if(value.isJsonNull() || (value.isJsonArray() && value.getAsJsonArray().size() == 0)) {
+				it.remove();
+			}
+			else if(value.isJsonObject()) {
+				removeEmptyValues(value.getAsJsonObject());
+			}
+			else if(value.isJsonArray()) {
+				value.getAsJsonArray().forEach(e -> {
+					if(e.isJsonObject()) {
+						removeEmptyValues(e.getAsJsonObject());
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * The baseline split returned the messages in hash order, so they are compared regardless of the order
+	 */
+	private static void assertSameMessages(List<JsonObject> expected, List<JsonObject> actual) {
+		assertEquals(expected.size(), actual.size());
+		for(JsonObject message : expected) {
+			assertEquals(true, actual.contains(message), "Missing message " + message);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import es.prodevelop.tic.benchmark.MessageGenerator;
+import es.prodevelop.tic.bo.TicBO;
+
+class KeyDictionaryTest {
+	
+	private static final String MESSAGE = "{\"msg\":{\"sender\":\"s\",\"id\":\"m0\"},\"che\":[{\"arrayid\":\"che0\",\"id\":\"C0\",\"hoist\":["
+			+ "{\"arrayid\":\"h0\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":1},{\"timestamp\":\"2022-01-01T10:00:01Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":2}]},"
+			+ "{\"arrayid\":\"h1\",\"position\":[{\"timestamp\":\"2022-01-01T10:00:00Z\",\"pomt\":\"actual\",\"unit\":\"m\",\"value\":3}]}]}]}";
+	
+	@Test
+	void mergedBuildOfEncodedResultIsTheSource() throws Exception {
+		JsonObject source = JsonUtils.jsonToJsonObject(MESSAGE);
+		JsonObject encoded = encode(TicBO.getMessages(source.deepCopy(), null, null));
+		
+		List<JsonObject> merged = new ArrayList<JsonObject>();
+		TicBO.mergeMessages(encoded, null, merged::add);
+		assertEquals(1, merged.size());
+		assertEquals(source, merged.get(0));
+	}
+	
+	@Test
+	void buildOfEncodedResultIsTheBuildOfTheFlatMessages() throws Exception {
+		int[][] parameters = { {1, 2, 2, 2}, {3, 3, 3, 3} };
+		for(int[] p : parameters) {
+			MessageGenerator generator = new MessageGenerator(p[0], p[1], p[2], p[3]);
+			for(String path : new String[] { null, generator.getSplitPath() }) {
+				JsonObject source = generator.generate();
+				List<JsonObject> flat = TicBO.getMessages(source, null, path);
+				JsonObject encoded = encode(flat);
+				
+				// Every key is in the dictionary once and the messages only have ids
+				JsonArray keys = encoded.getAsJsonArray(Result.getKeysProperty());
+				Set<String> distinct = new HashSet<String>();
+				keys.forEach(k -> distinct.add(k.getAsString()));
+				assertEquals(keys.size(), distinct.size());
+				for(JsonElement message : encoded.getAsJsonArray(Result.getMessagesProperty())) {
+					for(String id : message.getAsJsonObject().keySet()) {
+						assertTrue(Integer.parseInt(id) < keys.size());
+					}
+				}
+				
+				List<JsonObject> expected = new ArrayList<JsonObject>();
+				for(JsonObject message : flat) {
+					expected.addAll(TicBO.buildMessages(message, null));
+				}
+				assertEquals(expected, TicBO.buildMessages(encoded, null));
+				
+				List<JsonObject> expectedMerged = new ArrayList<JsonObject>();
+				JsonArray array = new JsonArray();
+				flat.forEach(array::add);
+				TicBO.mergeMessages(array, null, expectedMerged::add);
+				List<JsonObject> merged = new ArrayList<JsonObject>();
+				TicBO.mergeMessages(encoded, null, merged::add);
+				assertEquals(expectedMerged, merged);
+			}
+		}
+	}
+	
+	@Test
+	void decodeRejectsIdsThatAreNotNumbers() {
+		JsonArray keys = new JsonArray();
+		JsonObject message = new KeyDictionary(keys).encode(JsonUtils.jsonToJsonObject("{\"msg.id\":\"m0\"}"));
+		message.addProperty("msg.sender", "s");
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> KeyDictionary.decode(message, keys));
+		assertEquals("Key id is not a number: msg.sender", e.getMessage());
+	}
+	
+	@Test
+	void decodeRejectsIdsOutOfTheDictionary() {
+		JsonArray keys = new JsonArray();
+		keys.add("msg.id");
+		for(String id : new String[] { "1", "-1" }) {
+			JsonObject message = new JsonObject();
+			message.addProperty(id, "m0");
+			IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> KeyDictionary.decode(message, keys));
+			assertEquals("Key id not found in the dictionary: " + id, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the flatten result of the messages with a key dictionary, as written by /flatten?keydictionary=true
+	 */
+	private static JsonObject encode(List<JsonObject> flat) throws Exception {
+		StringWriter out = new StringWriter();
+		Result result = Result.streaming(out);
+		result.useKeyDictionary();
+		result.setResultOk();
+		for(JsonObject message : flat) {
+			result.addMessage(message);
+		}
+		result.close();
+		return JsonUtils.jsonToJsonObject(out.toString());
+	}
+}
@@ -0,0 +1,64 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class LruCacheTest {
+	
+	@Test
+	void evictsTheLeastRecentlyUsed() {
+		AtomicInteger loads = new AtomicInteger();
+		LruCache<String, String> cache = new LruCache<String, String>(4);
+		for(String key : new String[] { "a", "b", "c", "a", "d", "e", "a" }) {
+			cache.get(key, k -> { loads.incrementAndGet(); return k; });
+		}
+		// a is used while it is cached and is loaded once, b is evicted
+		assertEquals(5, loads.get());
+		cache.get("b", k -> { loads.incrementAndGet(); return k; });
+		assertEquals(6, loads.get());
+		assertEquals(true, cache.size() <= 4);
+	}
+	
+	@Test
+	void returnsTheCachedInstance() {
+		LruCache<String, String> cache = new LruCache<String, String>(16);
+		String first = cache.get(new String("key"), k -> k);
+		assertSame(first, cache.get(new String("key"), k -> k));
+	}
+}
@@ -0,0 +1,61 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+class ResultTest {
+	
+	@Test
+	void streamingWritesTheSameAsToString() throws Exception {
+		Result expected = new Result();
+		StringWriter out = new StringWriter();
+		Result streaming = Result.streaming(out);
+		for(Result r : new Result[] { expected, streaming }) {
+			JsonObject message = new JsonObject();
+			message.addProperty("che.@c0.speed.value", 1.5);
+			message.addProperty("che.@c0.load.value", Double.NaN);
+			r.setResultOk();
+			r.addMessage(message);
+			r.addError("an error");
+		}
+		streaming.close();
+		assertEquals(expected.toString(), out.toString());
+	}
+}
@@ -0,0 +1,140 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+class SplitPathTest {
+	
+	private static final String MESSAGE = "{\"msg\":{\"sender\":\"s\",\"id\":\"m0\"},"
+			+ "\"che\":[{\"arrayid\":\"che0\",\"hoist\":[{\"arrayid\":\"h0\",\"speed\":[{\"value\":1}]},{\"arrayid\":\"h1\",\"speed\":[{\"value\":2}]}],\"trolley\":{\"speed\":[{\"value\":3}]}},"
+			+ "{\"arrayid\":\"che1\",\"hoist\":{\"arrayid\":\"h2\"},\"trolley\":{\"speed\":[{\"value\":4}]}},"
+			+ "{\"arrayid\":\"che2\",\"trolley\":{\"speed\":[{\"value\":5}]}}]}";
+	
+	@Test
+	void splitMatchesBaseline() {
+		for(String path : new String[] { "che", "che.hoist", "che.trolley.speed", "tos", "msg.id" }) {
+			JsonObject object = JsonUtils.jsonToJsonObject(MESSAGE);
+			assertEquals(baselineSplit(object, path), toList(SplitPath.compile(path).split(object)), path);
+		}
+	}
+	
+	@Test
+	void splitKeepsOneElementPerArray() {
+		List<JsonObject> messages = toList(SplitPath.compile("che.hoist").split(JsonUtils.jsonToJsonObject(MESSAGE)));
+		// che1 has an object at the end of the path, which does not generate messages
+		assertEquals(3, messages.size());
+		JsonObject first = messages.get(0).getAsJsonArray("che").get(0).getAsJsonObject();
+		assertEquals(1, messages.get(0).getAsJsonArray("che").size());
+		assertEquals(1, first.getAsJsonArray("hoist").size());
+		assertEquals("h0", first.getAsJsonArray("hoist").get(0).getAsJsonObject().get("arrayid").getAsString());
+	}
+	
+	@Test
+	void splitDoesNotModifySource() {
+		JsonObject object = JsonUtils.jsonToJsonObject(MESSAGE);
+		toList(SplitPath.compile("che.hoist").split(object));
+		assertEquals(JsonUtils.jsonToJsonObject(MESSAGE), object);
+	}
+	
+	@Test
+	void entityKeyHasTheIdsAlongThePath() {
+		SplitPath path = SplitPath.compile("che.hoist");
+		List<JsonObject> messages = toList(path.split(JsonUtils.jsonToJsonObject(MESSAGE)));
+		assertEquals("che0.h0.", path.getEntityKey(messages.get(0), "arrayid"));
+		assertEquals("che0.h1.", path.getEntityKey(messages.get(1), "arrayid"));
+		assertEquals("che2.", path.getEntityKey(messages.get(2), "arrayid"));
+	}
+	
+	@Test
+	void recentPathsStayCompiledWhenManyAreUsed() {
+		for(int i = 0; i < 1000; i++) {
+			SplitPath.compile("che.path" + i);
+		}
+		SplitPath path = SplitPath.compile("che.hoist");
+		assertSame(path, SplitPath.compile("che.hoist"));
+	}
+	
+	private static List<JsonObject> toList(Iterable<JsonObject> messages) {
+		List<JsonObject> list = new ArrayList<JsonObject>();
+		messages.forEach(list::add);
+		return list;
+	}
+	
+	/**
+	 * The split before SplitPath: a copy of the whole message for each element of the arrays along the path
+	 */
+	private static List<JsonObject> baselineSplit(JsonObject object, String path) {
+		List<JsonObject> messages = new ArrayList<JsonObject>();
+		baselineSplit(object, object, "", path, messages);
+		return messages;
+	}
+	
+	private static void baselineSplit(JsonObject object, JsonObject currentNode, String currentPath, String pathToSplit, List<JsonObject> messages) {
+		String[] steps = pathToSplit.split("[.]");
+		String remaining = pathToSplit.substring(pathToSplit.indexOf(".") + 1);
+		JsonElement child = currentNode.get(steps[0]);
+		if(child instanceof JsonObject) {
+			if(steps.length > 1) {
+				baselineSplit(object, child.getAsJsonObject(), currentPath + steps[0] + ".", remaining, messages);
+			}
+		}
+		else if(child instanceof JsonArray) {
+			for(JsonElement e : child.getAsJsonArray()) {
+				JsonObject duplicate = object.deepCopy();
+				JsonArray newArray = new JsonArray();
+				newArray.add(e);
+				JsonUtils.replaceElement(duplicate, newArray, currentPath + steps[0]);
+				if(steps.length > 1) {
+					baselineSplit(duplicate, e.getAsJsonObject(), currentPath + steps[0] + ".", remaining, messages);
+				}
+				else {
+					messages.add(duplicate);
+				}
+			}
+		}
+		else if(child == null) {
+			messages.add(object);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TicConfigurationTest {
+	
+	@TempDir
+	Path directory;
+	
+	@Test
+	void environmentOverwritesDirectoryThatOverwritesClasspath() throws IOException {
+		write("config.properties", "MARKER_KEYFIELD=%", "FIELD_ID=dirid");
+		write("validation.properties", "pomt=|actual|", "unit=|m|");
+		write("errors.properties", "ERROR_PROPERTY_DUPLICATED=dir", "ERROR_NO_TIMESTAMP=dir");
+		Map<String, String> environment = new HashMap<String, String>();
+		environment.put("CONFIG_DIR", directory.toString());
+		environment.put("FIELD_ID", "envid");
+		environment.put("unit", "|s|");
+		environment.put("ERROR_NO_TIMESTAMP", "env");
+		environment.put("NOT_A_PROPERTY", "env");
+		
+		TicConfiguration configuration = TicConfiguration.load(environment);
+		
+		assertEquals("@", configuration.get("MARKER_ID"));
+		assertEquals("%", configuration.get("MARKER_KEYFIELD"));
+		assertEquals("envid", configuration.get("FIELD_ID"));
+		assertEquals(null, configuration.get("NOT_A_PROPERTY"));
+		
+		assertEquals("|input|output|iinput|ioutput|input_or_output|input_and_output|output_and_to|output_and_from|input_and_to|input_and_from|",
+				configuration.getValidations().get("pom"));
+		assertEquals("|actual|", configuration.getValidations().get("pomt"));
+		assertEquals("|s|", configuration.getValidations().get("unit"));
+		assertEquals(null, configuration.getValidations().get("NOT_A_PROPERTY"));
+		
+		assertEquals("{0}: The value {1} is not allowed", configuration.getErrors().get("ERROR_PROPERTY_NOT_ALLOWED_VALUE"));
+		assertEquals("dir", configuration.getErrors().get("ERROR_PROPERTY_DUPLICATED"));
+		assertEquals("env", configuration.getErrors().get("ERROR_NO_TIMESTAMP"));
+	}
+	
+	@Test
+	void environmentOverwritesClasspathWithoutDirectory() {
+		Map<String, String> environment = new HashMap<String, String>();
+		environment.put("FIELD_ID", "envid");
+		environment.put("pomt", "|actual|");
+		environment.put("ERROR_NO_TIMESTAMP", "env");
+		
+		TicConfiguration configuration = TicConfiguration.load(environment);
+		
+		assertEquals("envid", configuration.get("FIELD_ID"));
+		assertEquals("|actual|", configuration.getValidations().get("pomt"));
+		assertEquals("env", configuration.getErrors().get("ERROR_NO_TIMESTAMP"));
+		assertEquals("{0}: The value {1} is not allowed", configuration.getErrors().get("ERROR_PROPERTY_NOT_ALLOWED_VALUE"));
+	}
+	
+	private void write(String name, String... lines) throws IOException {
+		Files.write(directory.resolve(name), Arrays.asList(lines), StandardCharsets.UTF_8);
+	}
+}
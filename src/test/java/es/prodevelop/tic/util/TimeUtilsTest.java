@@ -0,0 +1,89 @@
+/*
+* Licensed to Prodevelop SL under one
+* or more contributor license agreements.  
+* Prodevelop SL licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+* 
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+* 
+* For more information, contact:
+*
+*   Prodevelop, S.L.
+*   C/ Cronista Carreres, 13 – entlo 2-4
+*   46003 Valencia
+*   Spain
+*
+*   +34 963 510 612
+* 
+*   prode@prodevelop.es
+*   https://www.prodevelop.es
+* 
+* @author Héctor Iturria Sánchez 
+*/
+
+package es.prodevelop.tic.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+
+import org.junit.jupiter.api.Test;
+
+class TimeUtilsTest {
+	
+	private static final String[] VALID = {
+			"2022-01-01T10:00:00Z", "2022-01-01T10:00:00.1Z", "2022-01-01T10:00:00.123Z", "2022-01-01T10:00:00.123456789Z", 
+			"2022-01-01T11:00:00+01:00", "2022-01-01T04:30:00.5-05:30", "2022-01-01T10:00Z", "2024-02-29T23:59:59.999Z", 
+			"1969-12-31T23:59:59.999Z", "1970-01-01T00:00:00Z", "2022-12-31T23:59:59+14:00", "2022-06-15T12:00:00.000000000Z"
+	};
+	
+	private static final String[] INVALID = {
+			"", "nonsense", "2022-01-01", "2022-01-01T10:00:00", "2022-01-01 10:00:00Z", "2023-02-29T10:00:00Z", 
+			"2022-13-01T10:00:00Z", "2022-01-32T10:00:00Z", "2022-01-01T24:00:01Z", "2022-01-01T10:60:00Z"
+	};
+	
+	@Test
+	void parsesLikeJavaTime() {
+		for(String timestamp : VALID) {
+			Instant instant = OffsetDateTime.parse(timestamp).toInstant();
+			assertEquals(instant.getEpochSecond() * 1000000000L + instant.getNano(), TimeUtils.getEpochNanosFromTimestamp(timestamp), timestamp);
+			assertEquals(instant.getEpochSecond(), TimeUtils.getEpochFromTimestamp(timestamp), timestamp);
+		}
+	}
+	
+	@Test
+	void invalidTimestampsAreNotParsed() {
+		for(String timestamp : INVALID) {
+			assertEquals(TimeUtils.INVALID_EPOCH, TimeUtils.getEpochNanosFromTimestamp(timestamp), timestamp);
+			assertEquals(0, TimeUtils.getEpochFromTimestamp(timestamp), timestamp);
+		}
+		assertEquals(TimeUtils.INVALID_EPOCH, TimeUtils.getEpochNanosFromTimestamp(null));
+	}
+	
+	@Test
+	void sameInstantWithOtherFormatIsEqual() {
+		assertEquals(TimeUtils.getEpochNanosFromTimestamp("2022-01-01T10:00:00Z"), TimeUtils.getEpochNanosFromTimestamp("2022-01-01T11:00:00.000+01:00"));
+		assertEquals(true, TimeUtils.sameTime("2022-01-01T10:00:00Z", "2022-01-01T05:00:00-05:00"));
+		assertEquals(true, TimeUtils.before("2022-01-01T10:00:00Z", "2022-01-01T10:00:01Z"));
+	}
+	
+	@Test
+	void cachedTimestampsKeepTheirValue() {
+		// Parsed twice, the second time from the cache
+		for(int i = 0; i < 2; i++) {
+			for(String timestamp : VALID) {
+				assertEquals(OffsetDateTime.parse(timestamp).toInstant().getEpochSecond(), TimeUtils.getEpochFromTimestamp(timestamp), timestamp);
+			}
+		}
+	}
+}